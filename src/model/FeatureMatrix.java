@@ -3,35 +3,171 @@ package model;
 import java.awt.Color;
 import java.awt.image.ImageProducer;
 import java.awt.image.MemoryImageSource;
-import java.util.Set;
-import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.BitSet;
 
+import model.storage.ElementType;
+import model.storage.FeatureStorage;
+import model.storage.MappedFeatureStorage;
+
+/**
+ * Matriz com um vetor de features de dimensao <code>depth</code> para cada
+ * pixel, e o segmento ao qual cada pixel pertence. As features sao
+ * guardadas em um unico <code>FeatureStorage</code>, com a disposicao e o
+ * tipo numerico escolhidos na criacao.
+ * <p>
+ * As features e os segmentos podem ficar em memoria ou em arquivos mapeados
+ * (ver <code>map</code> e <code>open</code>), o que permite processar
+ * imagens maiores que o heap.
+ */
 public class FeatureMatrix {
 
-	private int[][][] data;
+	private static final int MAGIC = 0x46454154;
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Disposicao das features no vetor.
+	 */
+	public static enum Layout {
+		/** Um plano contiguo por feature: (feature, linha, coluna). */
+		PLANAR,
+		/** As features de cada pixel consecutivas: (linha, coluna, feature). */
+		INTERLEAVED
+	}
+
+	private FeatureStorage data;
+	private Layout layout;
 	private int width;
 	private int height;
 	private int depth;
-	private byte[][] segment;
+	private FeatureStorage segment;
+	private File segmentFile;
 
 	public FeatureMatrix(int width, int height, int depth) {
+		this(width, height, depth, Layout.INTERLEAVED, ElementType.INT);
+	}
+
+	public FeatureMatrix(int width, int height, int depth, Layout layout,
+			ElementType type) {
+		this(FeatureStorage.allocate(type, (long) width * height * depth),
+				FeatureStorage.allocate(ElementType.BYTE, (long) width
+						* height), width, height, depth, layout);
+	}
+
+	private FeatureMatrix(FeatureStorage data, FeatureStorage segment,
+			int width, int height, int depth, Layout layout) {
 		super();
-		this.data = new int[height][width][depth];
+		this.data = data;
+		this.segment = segment;
+		this.layout = layout;
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
-		this.segment = new byte[height][width];
-		for (int i = 0; i < height; i++) {
-			for (int j = 0; j < width; j++) {
-				this.segment[i][j] = -1;
+	}
+
+	/**
+	 * Cria uma matriz que guarda apenas os segmentos, para os algoritmos que
+	 * leem as features direto de um converter em vez de guarda-las. As
+	 * features desta matriz nao podem ser lidas nem escritas.
+	 */
+	public static FeatureMatrix segmentsOnly(int width, int height, int depth) {
+		return new FeatureMatrix(FeatureStorage.allocate(ElementType.BYTE, 0),
+				FeatureStorage.allocate(ElementType.BYTE, (long) width
+						* height), width, height, depth, Layout.INTERLEAVED);
+	}
+
+	/**
+	 * Cria uma matriz vazia cujas features ficam mapeadas no arquivo
+	 * <code>featureFile</code> e cujos segmentos ficam mapeados em
+	 * <code>segmentFile</code>. Os arquivos existentes sao sobrescritos. O
+	 * arquivo de features pode ser aberto depois com <code>open</code>.
+	 */
+	public static FeatureMatrix map(File featureFile, File segmentFile,
+			int width, int height, int depth, Layout layout, ElementType type)
+			throws IOException {
+		FeatureStorage data;
+		try (RandomAccessFile raf = new RandomAccessFile(featureFile, "rw")) {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(width).putInt(height).putInt(depth)
+					.putInt(layout.ordinal()).putInt(type.ordinal());
+			header.rewind();
+			channel.write(header, 0);
+			data = new MappedFeatureStorage(channel, MapMode.READ_WRITE,
+					HEADER_SIZE, type, (long) width * height * depth);
+		}
+		FeatureMatrix fm = new FeatureMatrix(data, mapSegments(segmentFile,
+				ElementType.BYTE, (long) width * height), width, height,
+				depth, layout);
+		fm.segmentFile = segmentFile;
+		return fm;
+	}
+
+	/**
+	 * Abre somente para leitura um arquivo de features criado com
+	 * <code>map</code>. Os segmentos ficam em <code>segmentFile</code>, que e
+	 * sobrescrito. Varios processos podem abrir o mesmo arquivo de features,
+	 * cada um com seu arquivo de segmentos.
+	 */
+	public static FeatureMatrix open(File featureFile, File segmentFile)
+			throws IOException {
+		FeatureStorage data;
+		int width, height, depth;
+		Layout layout;
+		try (RandomAccessFile raf = new RandomAccessFile(featureFile, "r")) {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.nativeOrder());
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+				throw new IOException("Arquivo de features invalido: "
+						+ featureFile);
 			}
+			width = header.getInt();
+			height = header.getInt();
+			depth = header.getInt();
+			layout = Layout.values()[header.getInt()];
+			ElementType type = ElementType.values()[header.getInt()];
+			data = new MappedFeatureStorage(channel, MapMode.READ_ONLY,
+					HEADER_SIZE, type, (long) width * height * depth);
 		}
+		FeatureMatrix fm = new FeatureMatrix(data, mapSegments(segmentFile,
+				ElementType.BYTE, (long) width * height), width, height,
+				depth, layout);
+		fm.segmentFile = segmentFile;
+		return fm;
 	}
 
-	public int[][][] getData() {
+	private static FeatureStorage mapSegments(File file, ElementType type,
+			long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			return new MappedFeatureStorage(raf.getChannel(),
+					MapMode.READ_WRITE, 0, type, size);
+		}
+	}
+
+	public FeatureStorage getData() {
 		return data;
 	}
 
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public ElementType getElementType() {
+		return data.getElementType();
+	}
+
 	public int getWidth() {
 		return width;
 	}
@@ -44,8 +180,134 @@ public class FeatureMatrix {
 		return depth;
 	}
 
-	public byte[][] getSegment() {
-		return segment;
+	/**
+	 * @return Posicao em <code>getData()</code> da feature
+	 * 		<code>feature</code> do pixel (i, j).
+	 */
+	public long indexOf(int i, int j, int feature) {
+		if (layout == Layout.PLANAR) {
+			return ((long) feature * height + i) * width + j;
+		}
+		return ((long) i * width + j) * depth + feature;
+	}
+
+	/**
+	 * @return Valor da feature <code>feature</code> do pixel (i, j).
+	 */
+	public int get(int i, int j, int feature) {
+		return data.get(indexOf(i, j, feature));
+	}
+
+	public void set(int i, int j, int feature, int value) {
+		data.set(indexOf(i, j, feature), value);
+	}
+
+	/**
+	 * Copia o vetor de features do pixel (i, j) em <code>feature</code>.
+	 */
+	public void getFeature(int i, int j, int[] feature) {
+		if (layout == Layout.INTERLEAVED) {
+			data.get(indexOf(i, j, 0), feature, 0, depth);
+		} else {
+			for (int k = 0; k < depth; k++) {
+				feature[k] = data.get(indexOf(i, j, k));
+			}
+		}
+	}
+
+	public void setFeature(int i, int j, int[] feature) {
+		if (layout == Layout.INTERLEAVED) {
+			data.set(indexOf(i, j, 0), feature, 0, depth);
+		} else {
+			for (int k = 0; k < depth; k++) {
+				data.set(indexOf(i, j, k), feature[k]);
+			}
+		}
+	}
+
+	/**
+	 * @return Tipo usado para guardar os segmentos.
+	 */
+	public ElementType getSegmentType() {
+		return segment.getElementType();
+	}
+
+	/**
+	 * Garante que possam ser guardados os segmentos de 0 a
+	 * <code>count - 1</code>. Os segmentos sao guardados em bytes, shorts ou
+	 * ints, conforme a quantidade esperada, e passam a um tipo mais largo
+	 * quando necessario, conservando os valores ja atribuidos. Nao deve ser
+	 * invocado enquanto outras threads atribuem segmentos.
+	 *
+	 * @param count Quantidade de segmentos esperada.
+	 */
+	public void reserveSegments(int count) {
+		ElementType type = ElementType.forMaxValue(count);
+		if (type.getBytes() <= segment.getElementType().getBytes()) {
+			return;
+		}
+
+		FeatureStorage wider;
+		if (segmentFile == null) {
+			wider = FeatureStorage.allocate(type, segment.size());
+		} else {
+			try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw")) {
+				wider = new MappedFeatureStorage(raf.getChannel(),
+						MapMode.READ_WRITE, 0, type, segment.size());
+			} catch (IOException e) {
+				throw new RuntimeException(
+						"Nao foi possivel ampliar o arquivo de segmentos", e);
+			}
+		}
+
+		// De tras para frente, porque no arquivo mapeado o vetor novo ocupa
+		// o mesmo lugar que o antigo
+		for (long k = segment.size() - 1; k >= 0; k--) {
+			wider.set(k, segment.get(k));
+		}
+		segment = wider;
+	}
+
+	/**
+	 * @return Segmento do pixel (i, j), ou -1 se ainda nao foi atribuido.
+	 */
+	public int getSegment(int i, int j) {
+		return segment.get((long) i * width + j) - 1;
+	}
+
+	/**
+	 * Atribui o segmento do pixel (i, j), ou -1 para nenhum.
+	 *
+	 * @throws IllegalStateException se o segmento nao cabe no tipo
+	 * 		reservado com <code>reserveSegments</code>. Os segmentos nunca
+	 * 		sao saturados; e o tipo nao e ampliado aqui porque outras
+	 * 		threads podem estar atribuindo segmentos.
+	 */
+	public void setSegment(int i, int j, int segment) {
+		// guardado deslocado em um para que o zero seja "sem segmento"
+		int value = segment + 1;
+		if (value < 0) {
+			throw new IllegalStateException("Segmento invalido: " + segment);
+		}
+		if (value > this.segment.getElementType().getMaxValue()) {
+			throw new IllegalStateException("Segmento " + segment
+					+ " fora dos reservados: use reserveSegments("
+					+ (segment + 2L) + ")");
+		}
+		this.segment.set((long) i * width + j, value);
+	}
+
+	/**
+	 * Grava nos arquivos as alteracoes das features e dos segmentos, se
+	 * a matriz estiver mapeada.
+	 */
+	public void force() {
+		if (data instanceof MappedFeatureStorage) {
+			((MappedFeatureStorage) data).force();
+		}
+		if (segment instanceof MappedFeatureStorage) {
+			((MappedFeatureStorage) segment).force();
+		}
 	}
 
 	public ImageProducer createSegmentedImage() {
@@ -54,9 +316,10 @@ public class FeatureMatrix {
 
 		for (int i = 0; i < height; i++) {
 			for (int j = 0; j < width; j++) {
-				if (this.segment[i][j] != -1) {
-					segmentedImage[i * width + j] = segmentToColor(
-							this.segment[i][j], segmentCount).getRGB();
+				int s = getSegment(i, j);
+				if (s != -1) {
+					segmentedImage[i * width + j] = segmentToRGB(s,
+							segmentCount);
 				}
 			}
 		}
@@ -66,13 +329,11 @@ public class FeatureMatrix {
 
 	public ImageMatrix getImageMatrix() {
 		ImageMatrix im =  new ImageMatrix(width, height);
-		int[][] pixels = im.getPixels();
 		int segmentCount = segmentCount();
 
 		for (int i = 0; i < height; i++) {
 			for (int j = 0; j < width; j++) {
-				Color c = segmentToColor(segment[i][j], segmentCount);
-				pixels[i][j] = c.getRGB();
+				im.setRGB(i, j, segmentToRGB(getSegment(i, j), segmentCount));
 			}
 		}
 		
@@ -81,17 +342,17 @@ public class FeatureMatrix {
 
 	private int segmentCount() {
 
-		Set<Integer> set = new TreeSet<>();
+		BitSet set = new BitSet();
 		for (int i = 0; i < height; i++) {
 			for (int j = 0; j < width; j++) {
-				set.add((int) segment[i][j]);
+				set.set(getSegment(i, j) + 1);
 			}
 		}
 
-		return set.size();
+		return set.cardinality();
 	}
 
-	private Color segmentToColor(byte segment, int count) {
-		return Color.getHSBColor(segment / (float) count, 1.0f, 1.0f);
+	private int segmentToRGB(int segment, int count) {
+		return Color.HSBtoRGB(segment / (float) count, 1.0f, 1.0f);
 	}
 }
@@ -1,77 +1,175 @@
 package model;
 
 import java.awt.Image;
+import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
 import java.awt.image.ImageProducer;
 import java.awt.image.MemoryImageSource;
 import java.awt.image.PixelGrabber;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 
+/**
+ * Matriz de pixels RGB empacotados. Os pixels sao guardados em um unico
+ * vetor contiguo, linha a linha: o pixel (i, j) esta na posicao
+ * <code>getOffset() + i * getStride() + j</code> de <code>getData()</code>.
+ * O canal alpha nao e significativo.
+ */
 public class ImageMatrix {
-	
-	private int[][] pixels;
+
+	private static final int[] RGB_MASKS = { 0xFF0000, 0xFF00, 0xFF };
+
+	private int[] data;
+	private int offset;
+	private int stride;
 	private int width;
 	private int height;
+	private BufferedImage bufferedImage;
 
 	public ImageMatrix(int width, int height) {
+		this(new int[width * height], 0, width, width, height);
+	}
+
+	/**
+	 * Cria uma matriz sobre um vetor ja existente, sem copia-lo.
+	 *
+	 * @param data Vetor com os pixels.
+	 * @param offset Posicao do pixel (0, 0) no vetor.
+	 * @param stride Distancia entre o inicio de duas linhas consecutivas.
+	 * @param width Largura da imagem.
+	 * @param height Altura da imagem.
+	 */
+	public ImageMatrix(int[] data, int offset, int stride, int width, int height) {
+		if (stride < width || offset < 0
+				|| (height > 0 && offset + (long) (height - 1) * stride + width > data.length)) {
+			throw new IllegalArgumentException("Dimensoes fora do vetor de pixels");
+		}
+		this.data = data;
+		this.offset = offset;
+		this.stride = stride;
 		this.width = width;
 		this.height = height;
-		this.pixels = new int[height][width];
 	}
-	
+
+	/**
+	 * Cria uma matriz a partir de uma imagem. Se a imagem for uma
+	 * <code>BufferedImage</code> do tipo <code>TYPE_INT_RGB</code> ou
+	 * <code>TYPE_INT_ARGB</code>, a matriz usa diretamente o seu
+	 * <code>DataBufferInt</code>, sem copiar os pixels.
+	 */
 	public ImageMatrix(Image image) throws IOException {
-		
-		this(image.getWidth(null), image.getHeight(null));
-		this.pixels = new int[height][width];
-	
-		int[] pixelsTemp = new int[this.width * this.height];
-		
-		PixelGrabber grabber = new PixelGrabber(image, 0, 0, this.width, 
-				this.height, pixelsTemp, 0, this.width);
+		this.width = image.getWidth(null);
+		this.height = image.getHeight(null);
+
+		if (image instanceof BufferedImage && wrap((BufferedImage) image)) {
+			return;
+		}
+
+		this.data = new int[this.width * this.height];
+		this.stride = this.width;
+		PixelGrabber grabber = new PixelGrabber(image, 0, 0, this.width,
+				this.height, this.data, 0, this.width);
 		try {
 			grabber.grabPixels();
 		} catch (InterruptedException e) {
 			throw new IOException("Erro lendo os pixels da imagem de entrada");
 		}
-		
-		for (int i=0; i<this.height; i++) {
-			for (int j=0; j<this.width; j++) {
-				this.pixels[i][j] = pixelsTemp[i*this.width + j];
-			}
+	}
+
+	private boolean wrap(BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_INT_RGB
+				&& image.getType() != BufferedImage.TYPE_INT_ARGB) {
+			return false;
 		}
+		WritableRaster raster = image.getRaster();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		if (!(sm instanceof SinglePixelPackedSampleModel)
+				|| !(db instanceof DataBufferInt) || db.getNumBanks() != 1) {
+			return false;
+		}
+		SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+		this.data = ((DataBufferInt) db).getData();
+		this.offset = db.getOffset()
+				+ sppsm.getOffset(-raster.getSampleModelTranslateX(),
+						-raster.getSampleModelTranslateY());
+		this.stride = sppsm.getScanlineStride();
+		this.bufferedImage = image;
+		return true;
 	}
 
 	public ImageProducer getImage() {
-		int[] pixelsTemp = new int[this.width * this.height];
-		
-		for (int i=0; i<this.height; i++) {
-			System.arraycopy(this.pixels[i], 0, pixelsTemp, i * this.width, this.width);
-		}
-		
-		return new MemoryImageSource(this.width, this.height, pixelsTemp, 0, this.width);
+		return new MemoryImageSource(this.width, this.height,
+				new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]),
+				this.data, this.offset, this.stride);
 	}
-	
+
+	/**
+	 * Retorna uma <code>BufferedImage</code> que compartilha os pixels com
+	 * esta matriz. Alteracoes em uma sao visiveis na outra.
+	 */
 	public BufferedImage getBufferedImage() {
-		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		
-		for (int i=0; i<this.height; i++) {
-			for (int j=0; j<this.width; j++) {
-				bi.setRGB(j, i, this.pixels[i][j]);
-			}
+		if (bufferedImage == null) {
+			DataBufferInt db = new DataBufferInt(this.data, this.data.length
+					- this.offset, this.offset);
+			WritableRaster raster = Raster.createPackedRaster(db, this.width,
+					this.height, this.stride, RGB_MASKS, new Point(0, 0));
+			bufferedImage = new BufferedImage(new DirectColorModel(24,
+					RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]), raster, false,
+					null);
 		}
-		
-		return bi;
+		return bufferedImage;
 	}
-	
+
 	public int getHeight() {
 		return height;
 	}
-	
+
 	public int getWidth() {
 		return width;
 	}
-	
-	public int[][] getPixels() {
-		return pixels;
+
+	/**
+	 * @return Vetor com os pixels. Pode conter mais elementos que
+	 * 		<code>getWidth() * getHeight()</code>.
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return Posicao do pixel (0, 0) em <code>getData()</code>.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return Distancia em <code>getData()</code> entre duas linhas.
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @return Posicao do pixel da linha <code>i</code> e coluna
+	 * 		<code>j</code> em <code>getData()</code>.
+	 */
+	public int indexOf(int i, int j) {
+		return offset + i * stride + j;
+	}
+
+	public int getRGB(int i, int j) {
+		return data[offset + i * stride + j];
+	}
+
+	public void setRGB(int i, int j, int rgb) {
+		data[offset + i * stride + j] = rgb;
 	}
 }
@@ -1,6 +1,5 @@
 package model.converters;
 
-import java.awt.Color;
 import java.util.HashMap;
 
 import model.ImageMatrix;
@@ -11,11 +10,14 @@ import model.ImageMatrix;
  */
 public class ColorImageConverter extends ImageConverter {
 
+	private ColorSpace colorSpace;
+
 	/**
 	 * Crea una nueva instancia sobre una imagen determinada. En el
 	 * segundo parámetro recibe un conjunto de parámetros, entre los
 	 * cuales debe estar "colorSpace", que como valores posibles
-	 * admite: RGB, HSB y GRAYSCALE.
+	 * admite los de <code>ColorSpace</code>: RGB, HSB, GRAYSCALE, YCBCR
+	 * y LAB.
 	 * 
 	 * @param image Imagen a convertir.
 	 * @param params Conjunto de parámetros. El único que será consultado
@@ -23,36 +25,33 @@ public class ColorImageConverter extends ImageConverter {
 	 */
 	public ColorImageConverter(ImageMatrix image, HashMap<String, String> params) {
 		super(image, params);
+		this.colorSpace = ColorSpace.of(params.get("colorSpace"));
 	}
 
 	
 	@Override
 	protected void createFeature(int i, int j, int[] feature) {
-		Color c = new Color(image.getPixels()[i][j]);
-		String colorSpace = params.get("colorSpace");
-		if (colorSpace == null || colorSpace.equalsIgnoreCase("RGB")) {
-			feature[0] = c.getRed();
-			feature[1] = c.getGreen();
-			feature[2] = c.getBlue();
-		} else if (colorSpace.equalsIgnoreCase("HSB")) {
-			float[] hsbvals = new float[3];
-			hsbvals = Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(),
-					hsbvals);
-			feature[0] = (int) (hsbvals[0] * 255);
-			feature[1] = (int) (hsbvals[1] * 255);
-			feature[2] = (int) (hsbvals[2] * 255);
-		} else {
-			feature[0] = (int)(0.3*c.getRed() + 0.59*c.getGreen() + 0.11 * c.getBlue());
-		}
+		colorSpace.convert(image.getData(), image.indexOf(i, j), 1, feature, 0);
+	}
+
+	@Override
+	protected void createFeatures(int i, int[] features, int offset) {
+		colorSpace.convert(image.getData(), image.indexOf(i, 0),
+				image.getWidth(), features, offset);
+	}
+
+	@Override
+	protected boolean isThreadSafe() {
+		return true;
+	}
+
+	@Override
+	protected int getMaxValue() {
+		return 255;
 	}
 
 	@Override
 	protected int getDepth() {
-		String colorSpace = params.get("colorSpace");
-		if (colorSpace != null && colorSpace.equalsIgnoreCase("GRAYSCALE")) {
-			return 1;
-		} else {
-			return 3;
-		}
+		return colorSpace.getDepth();
 	}
 }
@@ -0,0 +1,296 @@
+package model.converters;
+
+/**
+ * Espacios de color en los que se puede expresar el color de un pixel.
+ * Cada espacio convierte pixels empaquetados como 0xRRGGBB extrayendo los
+ * canales con desplazamientos, sin crear objetos, de modo que se puede usar
+ * dentro de los recorridos por toda la imagen. Todos los canales quedan
+ * entre 0 y 255.
+ */
+public enum ColorSpace {
+
+	RGB(3) {
+		@Override
+		public void convert(int[] pixels, int from, int count, int[] features,
+				int offset) {
+			for (int k = from; k < from + count; k++, offset += 3) {
+				int pixel = pixels[k];
+				features[offset] = (pixel >> 16) & 0xff;
+				features[offset + 1] = (pixel >> 8) & 0xff;
+				features[offset + 2] = pixel & 0xff;
+			}
+		}
+	},
+
+	/**
+	 * Hue, saturation y brightness escalados a 0-255. Da exactamente los
+	 * mismos valores que <code>java.awt.Color.RGBtoHSB</code>.
+	 */
+	HSB(3) {
+		@Override
+		public void convert(int[] pixels, int from, int count, int[] features,
+				int offset) {
+			for (int k = from; k < from + count; k++, offset += 3) {
+				int pixel = pixels[k];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				int cmax = r > g ? r : g;
+				if (b > cmax) {
+					cmax = b;
+				}
+				int cmin = r < g ? r : g;
+				if (b < cmin) {
+					cmin = b;
+				}
+
+				if (cmax == cmin) {
+					features[offset] = 0;
+					features[offset + 1] = 0;
+				} else {
+					int delta = cmax - cmin;
+					float redc = QUOTIENTS[(cmax - r) << 8 | delta];
+					float greenc = QUOTIENTS[(cmax - g) << 8 | delta];
+					float bluec = QUOTIENTS[(cmax - b) << 8 | delta];
+					float hue;
+					if (r == cmax) {
+						hue = bluec - greenc;
+					} else if (g == cmax) {
+						hue = 2.0f + redc - bluec;
+					} else {
+						hue = 4.0f + greenc - redc;
+					}
+					hue = hue / 6.0f;
+					if (hue < 0) {
+						hue = hue + 1.0f;
+					}
+					features[offset] = (int) (hue * 255);
+					features[offset + 1] = SATURATION[delta << 8 | cmax];
+				}
+				features[offset + 2] = BRIGHTNESS[cmax];
+			}
+		}
+	},
+
+	GRAYSCALE(1) {
+		@Override
+		public void convert(int[] pixels, int from, int count, int[] features,
+				int offset) {
+			for (int k = from; k < from + count; k++, offset++) {
+				int pixel = pixels[k];
+				features[offset] = (int) (0.3 * ((pixel >> 16) & 0xff) + 0.59
+						* ((pixel >> 8) & 0xff) + 0.11 * (pixel & 0xff));
+			}
+		}
+	},
+
+	/**
+	 * Luma y diferencias de croma como en JPEG (ITU-R BT.601, rango
+	 * completo), con Cb y Cr centrados en 128. Usa aritmética entera con
+	 * tablas de 256 entradas por canal.
+	 */
+	YCBCR(3) {
+		@Override
+		public void convert(int[] pixels, int from, int count, int[] features,
+				int offset) {
+			for (int k = from; k < from + count; k++, offset += 3) {
+				int pixel = pixels[k];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				features[offset] = clamp((Y_R[r] + Y_G[g] + Y_B[b]) >> 16);
+				features[offset + 1] = clamp((CB_R[r] + CB_G[g] + CB_B[b]) >> 16);
+				features[offset + 2] = clamp((CR_R[r] + CR_G[g] + CR_B[b]) >> 16);
+			}
+		}
+	},
+
+	/**
+	 * CIE L*a*b* con iluminante D65, suponiendo pixels sRGB. L se escala de
+	 * 0-100 a 0-255 y a, b se desplazan en 128. La linealización de cada
+	 * canal y la matriz a XYZ están precalculadas en tablas de 256 entradas
+	 * por canal, y la raíz cúbica se interpola linealmente en una tabla, de
+	 * modo que no hay <code>pow</code> ni <code>cbrt</code> por pixel. El
+	 * error respecto del cálculo exacto es menor a una unidad.
+	 */
+	LAB(3) {
+		@Override
+		public void convert(int[] pixels, int from, int count, int[] features,
+				int offset) {
+			for (int k = from; k < from + count; k++, offset += 3) {
+				int pixel = pixels[k];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				float fx = labF(X_R[r] + X_G[g] + X_B[b]);
+				float fy = labF(Y_LINEAR_R[r] + Y_LINEAR_G[g] + Y_LINEAR_B[b]);
+				float fz = labF(Z_R[r] + Z_G[g] + Z_B[b]);
+				features[offset] = clamp((int) ((116 * fy - 16) * 2.55f + 0.5f));
+				features[offset + 1] = clamp((int) Math.floor(500 * (fx - fy)
+						+ 128.5f));
+				features[offset + 2] = clamp((int) Math.floor(200 * (fy - fz)
+						+ 128.5f));
+			}
+		}
+	};
+
+	/*
+	 * Tablas para HSB, con los mismos cálculos en float que
+	 * Color.RGBtoHSB: QUOTIENTS[n << 8 | d] es n / d, SATURATION[d << 8 | max]
+	 * es la saturación escalada y BRIGHTNESS[max] el brillo escalado.
+	 */
+	private static final float[] QUOTIENTS = new float[1 << 16];
+	private static final int[] SATURATION = new int[1 << 16];
+	private static final int[] BRIGHTNESS = new int[256];
+
+	static {
+		for (int n = 0; n < 256; n++) {
+			for (int d = 1; d < 256; d++) {
+				QUOTIENTS[n << 8 | d] = ((float) n) / ((float) d);
+				SATURATION[n << 8 | d] = (int) ((((float) n) / ((float) d)) * 255);
+			}
+			BRIGHTNESS[n] = (int) ((((float) n) / 255.0f) * 255);
+		}
+	}
+
+	/*
+	 * Tablas para YCbCr: cada canal multiplicado por su coeficiente en punto
+	 * fijo con 16 bits de fracción. El redondeo y el desplazamiento de 128
+	 * de Cb y Cr están sumados en la tabla del azul.
+	 */
+	private static final int[] Y_R = new int[256];
+	private static final int[] Y_G = new int[256];
+	private static final int[] Y_B = new int[256];
+	private static final int[] CB_R = new int[256];
+	private static final int[] CB_G = new int[256];
+	private static final int[] CB_B = new int[256];
+	private static final int[] CR_R = new int[256];
+	private static final int[] CR_G = new int[256];
+	private static final int[] CR_B = new int[256];
+
+	static {
+		int half = 1 << 15;
+		int offset = 128 << 16;
+		for (int v = 0; v < 256; v++) {
+			Y_R[v] = fix(0.299) * v;
+			Y_G[v] = fix(0.587) * v;
+			Y_B[v] = fix(0.114) * v + half;
+			CB_R[v] = -fix(0.168736) * v;
+			CB_G[v] = -fix(0.331264) * v;
+			CB_B[v] = fix(0.5) * v + offset + half - 1;
+			CR_R[v] = fix(0.5) * v;
+			CR_G[v] = -fix(0.418688) * v;
+			CR_B[v] = -fix(0.081312) * v + offset + half - 1;
+		}
+	}
+
+	/*
+	 * Tablas para Lab: cada canal sRGB linealizado y multiplicado por su
+	 * coeficiente de la matriz a XYZ, ya dividido por el blanco D65. LAB_F
+	 * tiene f(t) para t entre 0 y 1 en LAB_F_SIZE intervalos.
+	 */
+	private static final float[] X_R = new float[256];
+	private static final float[] X_G = new float[256];
+	private static final float[] X_B = new float[256];
+	private static final float[] Y_LINEAR_R = new float[256];
+	private static final float[] Y_LINEAR_G = new float[256];
+	private static final float[] Y_LINEAR_B = new float[256];
+	private static final float[] Z_R = new float[256];
+	private static final float[] Z_G = new float[256];
+	private static final float[] Z_B = new float[256];
+	private static final int LAB_F_SIZE = 4096;
+	private static final float[] LAB_F = new float[LAB_F_SIZE + 1];
+
+	static {
+		double xn = 0.95047;
+		double zn = 1.08883;
+		for (int v = 0; v < 256; v++) {
+			double c = v / 255.0;
+			double linear = c <= 0.04045 ? c / 12.92 : Math.pow(
+					(c + 0.055) / 1.055, 2.4);
+			X_R[v] = (float) (0.4124564 * linear / xn);
+			X_G[v] = (float) (0.3575761 * linear / xn);
+			X_B[v] = (float) (0.1804375 * linear / xn);
+			Y_LINEAR_R[v] = (float) (0.2126729 * linear);
+			Y_LINEAR_G[v] = (float) (0.7151522 * linear);
+			Y_LINEAR_B[v] = (float) (0.0721750 * linear);
+			Z_R[v] = (float) (0.0193339 * linear / zn);
+			Z_G[v] = (float) (0.1191920 * linear / zn);
+			Z_B[v] = (float) (0.9503041 * linear / zn);
+		}
+		for (int k = 0; k < LAB_F.length; k++) {
+			LAB_F[k] = (float) exactLabF((double) k / LAB_F_SIZE);
+		}
+	}
+
+	private int depth;
+
+	private ColorSpace(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * @return La cantidad de canales del espacio.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Convierte <code>count</code> pixels consecutivos. Los canales de cada
+	 * pixel quedan uno detrás del otro en <code>features</code>, con valores
+	 * entre 0 y 255.
+	 *
+	 * @param pixels Pixels en formato 0xRRGGBB; el alpha se ignora.
+	 * @param from Posición del primer pixel.
+	 * @param count Cantidad de pixels.
+	 * @param features Vector en el cual dejar los canales.
+	 * @param offset Posición del primer canal del primer pixel.
+	 */
+	public abstract void convert(int[] pixels, int from, int count,
+			int[] features, int offset);
+
+	/**
+	 * La función f de la definición de Lab.
+	 */
+	static double exactLabF(double t) {
+		if (t > 216.0 / 24389.0) {
+			return Math.cbrt(t);
+		}
+		return (24389.0 / 27.0 * t + 16) / 116;
+	}
+
+	private static float labF(float t) {
+		if (t <= 0) {
+			return LAB_F[0];
+		}
+		if (t >= 1) {
+			return LAB_F[LAB_F_SIZE];
+		}
+		float position = t * LAB_F_SIZE;
+		int k = (int) position;
+		float fraction = position - k;
+		return LAB_F[k] + (LAB_F[k + 1] - LAB_F[k]) * fraction;
+	}
+
+	private static int fix(double x) {
+		return (int) (x * (1 << 16) + 0.5);
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	/**
+	 * @param name Nombre del espacio, sin distinguir mayúsculas, como se
+	 * 		indica en el parámetro "colorSpace".
+	 * @return El espacio de color, o RGB si <code>name</code> es
+	 * 		<code>null</code>.
+	 */
+	public static ColorSpace of(String name) {
+		if (name == null) {
+			return RGB;
+		}
+		return valueOf(name.toUpperCase());
+	}
+}
@@ -0,0 +1,66 @@
+package model.converters;
+
+/**
+ * Bloque de filas consecutivas de features producido por
+ * <code>ImageConverter.stream</code>. Las features de cada pixel están una
+ * detrás de la otra, fila por fila.
+ */
+public class FeatureBlock {
+	private int rowFrom;
+	private int rowCount;
+	private int width;
+	private int depth;
+	private int[] features;
+
+	public FeatureBlock(int rowFrom, int rowCount, int width, int depth) {
+		this.rowFrom = rowFrom;
+		this.rowCount = rowCount;
+		this.width = width;
+		this.depth = depth;
+		this.features = new int[rowCount * width * depth];
+	}
+
+	/**
+	 * @return La primera fila de la imagen contenida en el bloque.
+	 */
+	public int getRowFrom() {
+		return rowFrom;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return Las features del bloque; las del pixel (i, j) empiezan en
+	 * 		<code>indexOf(i, j)</code>.
+	 */
+	public int[] getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @param i Fila de la imagen, entre <code>getRowFrom()</code> y
+	 * 		<code>getRowFrom() + getRowCount() - 1</code>.
+	 * @param j Columna de la imagen.
+	 * @return Posición de la primera componente de la feature del pixel.
+	 */
+	public int indexOf(int i, int j) {
+		return ((i - rowFrom) * width + j) * depth;
+	}
+
+	/**
+	 * Copia la feature del pixel (i, j) en <code>feature</code>.
+	 */
+	public void getFeature(int i, int j, int[] feature) {
+		System.arraycopy(features, indexOf(i, j), feature, 0, depth);
+	}
+}
@@ -0,0 +1,100 @@
+package model.converters;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Recorre los bloques de otro iterador calculándolos por adelantado en un
+ * thread aparte, de modo que la extracción de features se superpone con el
+ * procesamiento de los bloques. Como mucho <code>window</code> bloques
+ * esperan en memoria a ser consumidos.
+ * <p>
+ * Si la extracción falla, incluso con un <code>Error</code>, la excepción se
+ * vuelve a lanzar en <code>hasNext</code> después de los bloques ya
+ * computados. Hay que invocar <code>close</code> si se deja de consumir
+ * antes del final.
+ */
+public class FeatureStream implements Iterator<FeatureBlock>, AutoCloseable {
+
+	/* Marca el final de los bloques */
+	private static final FeatureBlock END = new FeatureBlock(0, 0, 0, 0);
+
+	private BlockingQueue<FeatureBlock> queue;
+	private Thread producer;
+	private volatile Throwable failure;
+	private FeatureBlock next;
+
+	public FeatureStream(final Iterator<FeatureBlock> blocks, int window) {
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, window));
+		this.producer = new Thread("FeatureStream") {
+			@Override
+			public void run() {
+				boolean closed = false;
+				try {
+					while (blocks.hasNext()) {
+						queue.put(blocks.next());
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				} catch (Throwable e) {
+					failure = e;
+				} finally {
+					// Sin el final, el consumidor esperaría para siempre
+					if (!closed) {
+						try {
+							queue.put(END);
+						} catch (InterruptedException e) {
+							// Cerrado antes de consumir el final
+						}
+					}
+				}
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Nao foi possivel ler o bloco", e);
+			}
+		}
+		if (next == END && failure != null) {
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			throw new RuntimeException("Nao foi possivel calcular o bloco",
+					failure);
+		}
+		return next != END;
+	}
+
+	public FeatureBlock next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		FeatureBlock block = next;
+		next = null;
+		return block;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Detiene la extracción de los bloques que faltan.
+	 */
+	public void close() {
+		producer.interrupt();
+	}
+}
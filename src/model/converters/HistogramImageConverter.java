@@ -1,19 +1,47 @@
 package model.converters;
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 
+import model.FeatureMatrix;
 import model.ImageMatrix;
 
 /**
  * Implementación concreta de un converter que toma como feature el
  * histograma de una ventana alrededor de cada pixel.
+ * <p>
+ * La ventana es un cuadrado de lado <code>2 * radius + 1</code>, recortado
+ * en los bordes de la imagen; el radio se indica con el parámetro "radius"
+ * (por defecto 1, es decir 3x3). Las features de cada fila se calculan
+ * deslizando la ventana: se mantiene el histograma de cada columna de la
+ * ventana y al avanzar un pixel sólo se suma la columna que entra y se
+ * resta la que sale, de modo que el costo por pixel no depende del radio.
  */
 public class HistogramImageConverter extends ImageConverter {
 	private int intervalClassesCountPerChannel = 3;
 	private int xinfluence = 0;
 	private int yinfluence = 0;
 	private int spaceChannelsCount = 0;
+	private int radius = 1;
+
+	private ColorSpace colorSpace;
+	private int channels;
+
+	/* Estado del deslizamiento entre una fila y la siguiente, por thread */
+	private ThreadLocal<Window> windows = new ThreadLocal<>();
+
+	/*
+	 * Vectores auxiliares de createFeature, por thread; sólo se usa classify,
+	 * que no depende de la imagen, así que no hace falta renovarlos
+	 */
+	private ThreadLocal<Window> scratch = new ThreadLocal<Window>() {
+		@Override
+		protected Window initialValue() {
+			return new Window();
+		}
+	};
 
 	public HistogramImageConverter(ImageMatrix image,
 			HashMap<String, String> params) {
@@ -33,90 +61,216 @@ public class HistogramImageConverter extends ImageConverter {
 			this.yinfluence = new Integer(param);
 			spaceChannelsCount++;
 		}
+
+		if ((param = params.get("radius")) != null) {
+			this.radius = Math.max(0, Integer.parseInt(param));
+		}
+
+		this.colorSpace = ColorSpace.of(params.get("colorSpace"));
+		this.channels = colorSpace.getDepth();
+	}
+
+	@Override
+	public FeatureMatrix createFeatureMatrix() {
+		// La imagen pudo cambiar desde la última conversión
+		windows = new ThreadLocal<>();
+		return super.createFeatureMatrix();
+	}
+
+	@Override
+	public Iterator<FeatureBlock> stream(int blockRows) {
+		windows = new ThreadLocal<>();
+		return super.stream(blockRows);
 	}
 
+	/**
+	 * Computa el histograma de la ventana de un único pixel recorriéndola
+	 * entera. <code>createFeatures</code> obtiene el mismo resultado
+	 * deslizando la ventana.
+	 */
 	@Override
 	protected void createFeature(int i, int j, int[] feature) {
-		int xmoves[] = { 0, 1, -1, 0, 1, -1, 0, 1, -1 };
-		int ymoves[] = { 0, 0, 0, 1, 1, 1, -1, -1, -1 };
+		Window w = scratch.get();
 		int histogramSamples = 0;
-		float[] components = new float[3];
-		String s = params.get("colorSpace");
-
-		for (int k = 0; k < xmoves.length; k++) {
-			if (i + ymoves[k] > 0 && i + ymoves[k] < this.image.getHeight()
-					&& j + xmoves[k] > 0
-					&& j + xmoves[k] < this.image.getWidth()) {
-
-				components = getColorComponents(this.image.getPixels()[i
-						+ ymoves[k]][j + xmoves[k]]);
-
-				feature[(int) Math.floor((components[0] / 256.0)
-						* intervalClassesCountPerChannel)]++;
-				// si no es grayscale considerar los otros dos canales
-				if (!(s != null && s.equalsIgnoreCase("grayscale"))) {
-					feature[intervalClassesCountPerChannel
-							+ (int) Math.floor((components[1] / 256.0)
-									* intervalClassesCountPerChannel)]++;
-					feature[2
-							* intervalClassesCountPerChannel
-							+ (int) Math.floor((components[2] / 256.0)
-									* intervalClassesCountPerChannel)]++;
+		for (int y = Math.max(0, i - radius); y <= Math.min(
+				image.getHeight() - 1, i + radius); y++) {
+			for (int x = Math.max(0, j - radius); x <= Math.min(
+					image.getWidth() - 1, j + radius); x++) {
+				w.classify(image.getRGB(y, x));
+				for (int c = 0; c < channels; c++) {
+					feature[w.classes[c]]++;
 				}
 				histogramSamples++;
+			}
+		}
+		normalize(i, j, feature, feature, 0, histogramSamples);
+	}
 
+	@Override
+	protected void createFeatures(int i, int[] features, int offset) {
+		Window w = windows.get();
+		if (w == null) {
+			w = new Window();
+			w.columns = new int[image.getWidth() * channels
+					* intervalClassesCountPerChannel];
+			windows.set(w);
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		// Histogramas de columna de las filas i - radius .. i + radius
+		if (w.row >= 0 && i == w.row + 1) {
+			if (i - radius - 1 >= 0) {
+				w.addRow(i - radius - 1, -1);
+			}
+			if (i + radius < height) {
+				w.addRow(i + radius, 1);
+			}
+		} else {
+			Arrays.fill(w.columns, 0);
+			for (int y = Math.max(0, i - radius); y <= Math.min(height - 1,
+					i + radius); y++) {
+				w.addRow(y, 1);
 			}
 		}
+		w.row = i;
+		int rows = Math.min(height - 1, i + radius) - Math.max(0, i - radius)
+				+ 1;
 
-		for (int k = 0; k < feature.length - spaceChannelsCount; k++) {
-			feature[k] = (feature[k] * 1000) / histogramSamples;
+		int[] histogram = w.histogram;
+		Arrays.fill(histogram, 0);
+		for (int x = 0; x <= Math.min(width - 1, radius); x++) {
+			w.addColumn(x, 1);
+		}
+		int depth = getDepth();
+		for (int j = 0; j < width; j++) {
+			if (j > 0) {
+				if (j + radius < width) {
+					w.addColumn(j + radius, 1);
+				}
+				if (j - radius - 1 >= 0) {
+					w.addColumn(j - radius - 1, -1);
+				}
+			}
+			int cols = Math.min(width - 1, j + radius)
+					- Math.max(0, j - radius) + 1;
+			normalize(i, j, histogram, features, offset + j * depth, rows
+					* cols);
 		}
+	}
 
-		if (params.get("xinfluence") != null
-				&& !params.get("xinfluence").equals("0")) {
-			feature[feature.length - 2] = (int) ((i / new Double(image
-					.getHeight())) * xinfluence);
+	/**
+	 * Deja en <code>feature</code>, a partir de <code>base</code>, el
+	 * histograma normalizado a 1000 seguido de la influencia de la posición
+	 * del pixel (i, j).
+	 */
+	private void normalize(int i, int j, int[] histogram, int[] feature,
+			int base, int histogramSamples) {
+		int k = 0;
+		for (; k < channels * intervalClassesCountPerChannel; k++) {
+			feature[base + k] = (histogram[k] * 1000) / histogramSamples;
+		}
+		if (xinfluence != 0) {
+			feature[base + k++] = (int) ((i / (double) image.getHeight()) * xinfluence);
 		}
-		if (params.get("yinfluence") != null
-				&& !params.get("xinfluence").equals("0")) {
-			feature[feature.length - 1] = (int) ((j / new Double(image
-					.getWidth())) * yinfluence);
+		if (yinfluence != 0) {
+			feature[base + k] = (int) ((j / (double) image.getWidth()) * yinfluence);
 		}
 	}
 
+	@Override
+	protected boolean isThreadSafe() {
+		return true;
+	}
+
+	@Override
+	protected int getMaxValue() {
+		// las frecuencias se normalizan a 1000
+		return Math.max(1000, Math.max(xinfluence, yinfluence));
+	}
+
 	@Override
 	protected int getDepth() {
-		int n = 3;
-		String s = params.get("colorSpace");
-		if (s != null && s.equalsIgnoreCase("grayscale")) {
-			n = 1;
-		}
-		return n * intervalClassesCountPerChannel + spaceChannelsCount;
+		return channels * intervalClassesCountPerChannel + spaceChannelsCount;
 	}
 
-	
-	private float[] getColorComponents(int pixel) {
-		float[] ret = new float[3];
-		String s = params.get("colorSpace");
-		if (s == null || s.equalsIgnoreCase("RGB")) {
-			Color c = new Color(pixel);
-			ret[0] = c.getRed();
-			ret[1] = c.getGreen();
-			ret[2] = c.getBlue();
-		} else if (s.equalsIgnoreCase("HSB")) {
-			Color c = new Color(pixel);
-			ret = Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(), ret);
-			ret[0] *= 255;
-			ret[1] *= 255;
-			ret[2] *= 255;
-		} else {
-			Color c = new Color(pixel);
-			int gray = (int) (0.3 * c.getRed() + 0.59 * c.getGreen() + 0.11 * c
-					.getBlue());
-			ret[0] = gray;
-			ret[1] = gray;
-			ret[2] = gray;
-		}
-		return ret;
+	/**
+	 * Histogramas de columna y vectores auxiliares usados al deslizar la
+	 * ventana, reutilizados de un pixel al siguiente.
+	 */
+	private class Window {
+		/* Fila central de los histogramas de columna, -1 si no hay */
+		int row = -1;
+		/* Histograma de cada columna, uno detrás del otro */
+		int[] columns;
+		/* Histograma de la ventana actual */
+		int[] histogram = new int[channels * intervalClassesCountPerChannel];
+		/* Clase de cada canal del último pixel clasificado */
+		int[] classes = new int[3];
+		int[] pixels = new int[1];
+		int[] values = new int[3];
+		/* Canales de una fila entera */
+		int[] rowValues;
+		float[] hsb = new float[3];
+
+		/**
+		 * Suma (o resta, si <code>sign</code> es -1) una fila de la imagen a
+		 * los histogramas de columna.
+		 */
+		void addRow(int y, int sign) {
+			int bins = histogram.length;
+			int width = image.getWidth();
+			if (colorSpace == ColorSpace.HSB) {
+				for (int x = 0; x < width; x++) {
+					classify(image.getRGB(y, x));
+					for (int c = 0; c < channels; c++) {
+						columns[x * bins + classes[c]] += sign;
+					}
+				}
+				return;
+			}
+
+			if (rowValues == null) {
+				rowValues = new int[width * channels];
+			}
+			colorSpace.convert(image.getData(), image.indexOf(y, 0), width,
+					rowValues, 0);
+			int n = intervalClassesCountPerChannel;
+			for (int x = 0, v = 0; x < width; x++) {
+				for (int c = 0; c < channels; c++, v++) {
+					columns[x * bins + c * n
+							+ (int) ((rowValues[v] / 256.0) * n)] += sign;
+				}
+			}
+		}
+
+		void addColumn(int x, int sign) {
+			int bins = histogram.length;
+			for (int k = 0, b = x * bins; k < bins; k++, b++) {
+				histogram[k] += sign * columns[b];
+			}
+		}
+
+		/**
+		 * Deja en <code>classes</code> la posición en el histograma de cada
+		 * canal del pixel.
+		 */
+		void classify(int pixel) {
+			int n = intervalClassesCountPerChannel;
+			if (colorSpace == ColorSpace.HSB) {
+				// Se clasifica sin truncar los canales a enteros
+				Color.RGBtoHSB((pixel >> 16) & 0xff, (pixel >> 8) & 0xff,
+						pixel & 0xff, hsb);
+				classes[0] = (int) (((hsb[0] * 255) / 256.0) * n);
+				classes[1] = n + (int) (((hsb[1] * 255) / 256.0) * n);
+				classes[2] = 2 * n + (int) (((hsb[2] * 255) / 256.0) * n);
+				return;
+			}
+			pixels[0] = pixel;
+			colorSpace.convert(pixels, 0, 1, values, 0);
+			for (int c = 0; c < channels; c++) {
+				classes[c] = c * n + (int) ((values[c] / 256.0) * n);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,9 +1,17 @@
 package model.converters;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import model.FeatureMatrix;
 import model.ImageMatrix;
+import model.storage.ElementType;
 
 /**
  * Clase abstracta de la cual deben extender todos los converters. Los
@@ -14,6 +22,9 @@ import model.ImageMatrix;
 public abstract class ImageConverter {
 	protected ImageMatrix image;
 	protected HashMap<String, String> params;
+
+	/* Filas de cada bloque en createFeatureMatrix */
+	private static final int BLOCK_ROWS = 16;
 	
 	public ImageConverter(ImageMatrix image, HashMap<String, String> params) {
 		this.image = image;
@@ -22,26 +33,236 @@ public abstract class ImageConverter {
 	
 	/**
 	 * Convierte la <code>ImageMatrix</code> que se recibió en el constructor
-	 * en una <code>FeatureMatriz</code>. Lo único que hace es iterar por toda
-	 * la imagen, e invocar al método abstracto <code>createFeature</code>
-	 * para computar la feature en cada punto. Este método será implementado por
-	 * los converters específicos.
+	 * en una <code>FeatureMatriz</code>. Lo único que hace es recorrer los
+	 * bloques de filas de <code>stream</code>, que invoca al método abstracto
+	 * <code>createFeature</code> para computar la feature en cada punto. Este
+	 * método será implementado por los converters específicos.
+	 * <p>
+	 * La disposición de las features se puede elegir con el parámetro
+	 * "featureLayout" (PLANAR o INTERLEAVED) y el tipo numérico con
+	 * "featureType" (BYTE, SHORT o INT). Si no se indica el tipo,
+	 * se usa el menor capaz de contener <code>getMaxValue</code>.
+	 * <p>
+	 * Si se indica el parámetro "featureFile", las features se escriben en
+	 * ese archivo mapeado en memoria en lugar del heap, y los segmentos en
+	 * el archivo "segmentFile" (por defecto, "featureFile" con la extensión
+	 * ".segments").
+	 * <p>
+	 * Si el converter es <code>isThreadSafe</code>, las filas se reparten en
+	 * franjas entre los threads de un <code>ForkJoinPool</code>; el
+	 * parámetro "parallelism" indica la cantidad de threads (por defecto, la
+	 * cantidad de procesadores; con 1 la conversión es secuencial). Si se
+	 * indica "streamWindow", en cambio, los bloques se computan en un único
+	 * thread aparte mientras se guardan los anteriores, cualquiera sea
+	 * "parallelism".
 	 * 
 	 * @return La <code>FeatureMatrix</code> resultante.
 	 */
 	public FeatureMatrix createFeatureMatrix() {
-		FeatureMatrix imageMatrix = new FeatureMatrix(image.getWidth(), 
-					image.getHeight(), this.getDepth());
-		
-		for (int i=0; i<image.getHeight(); i++) {
-			for (int j=0; j<image.getWidth(); j++) {
-				createFeature(i, j, imageMatrix.getData()[i][j]);
+		FeatureMatrix imageMatrix = createEmptyFeatureMatrix();
+
+		String s = params.get("streamWindow");
+		int window = s != null ? Integer.parseInt(s) : 0;
+		if (window > 0) {
+			FeatureStream stream = new FeatureStream(stream(BLOCK_ROWS),
+					window);
+			try {
+				store(imageMatrix, stream);
+			} finally {
+				stream.close();
+			}
+			return imageMatrix;
+		}
+
+		String p = params.get("parallelism");
+		int parallelism = p != null ? Math.max(1, Integer.parseInt(p))
+				: Runtime.getRuntime().availableProcessors();
+		if (parallelism > 1 && isThreadSafe()) {
+			// Algunas franjas por thread para equilibrar la carga
+			int grain = Math.max(BLOCK_ROWS, (image.getHeight()
+					+ parallelism * 4 - 1) / (parallelism * 4));
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new RowsTask(imageMatrix, 0, image.getHeight(),
+						grain));
+			} finally {
+				pool.shutdown();
 			}
+			return imageMatrix;
 		}
-		
+
+		store(imageMatrix, stream(BLOCK_ROWS));
 		return imageMatrix;
 	}
+
+	/**
+	 * Crea una <code>FeatureMatrix</code> que sólo guarda los segmentos,
+	 * para los algoritmos que leen las features con <code>stream</code> y
+	 * <code>computeFeature</code> mientras segmentan, sin guardarlas. Así
+	 * la extracción se superpone con la segmentación y no hace falta
+	 * memoria para las features de toda la imagen.
+	 * 
+	 * @return La matriz, con la dimensión de las features de este
+	 * 		converter.
+	 */
+	public FeatureMatrix createSegmentMatrix() {
+		return FeatureMatrix.segmentsOnly(image.getWidth(), image.getHeight(),
+				getDepth());
+	}
+
+	/**
+	 * Computa la feature de un único pixel, fuera de los recorridos por
+	 * filas. No debe invocarse mientras se recorre un <code>stream</code>
+	 * desde otro thread, salvo que el converter sea <code>isThreadSafe</code>.
+	 * 
+	 * @param i Fila del pixel.
+	 * @param j Columna del pixel.
+	 * @param feature Vector de dimensión <code>getDepth</code> en el cual
+	 * 		dejar la feature.
+	 */
+	public void computeFeature(int i, int j, int[] feature) {
+		Arrays.fill(feature, 0);
+		createFeature(i, j, feature);
+	}
+
+	/**
+	 * Recorre la imagen de a bloques de <code>blockRows</code> filas. Cada
+	 * bloque se computa recién al pedirlo con <code>next</code>, de modo que
+	 * sólo hace falta tener en memoria los bloques que se están procesando.
+	 * <p>
+	 * Si se indica el parámetro "streamWindow" (cantidad de bloques),
+	 * <code>createFeatureMatrix</code> computa los bloques en un thread
+	 * aparte mientras guarda los anteriores; para hacer lo mismo con el
+	 * resultado de este método se puede usar <code>FeatureStream</code>,
+	 * como hace <code>MiniBatchKMeans</code> en su pasada final.
+	 * 
+	 * @param blockRows Cantidad de filas de cada bloque; el último puede
+	 * 		tener menos.
+	 * @return Los bloques, de arriba hacia abajo.
+	 */
+	public Iterator<FeatureBlock> stream(final int blockRows) {
+		if (blockRows < 1) {
+			throw new IllegalArgumentException("blockRows = " + blockRows);
+		}
+		return new Iterator<FeatureBlock>() {
+			private int row = 0;
+
+			public boolean hasNext() {
+				return row < image.getHeight();
+			}
+
+			public FeatureBlock next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int rows = Math.min(blockRows, image.getHeight() - row);
+				FeatureBlock block = createBlock(row, rows);
+				row += rows;
+				return block;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private FeatureBlock createBlock(int rowFrom, int rows) {
+		FeatureBlock block = new FeatureBlock(rowFrom, rows, image.getWidth(),
+				getDepth());
+		for (int i = rowFrom; i < rowFrom + rows; i++) {
+			createFeatures(i, block.getFeatures(), block.indexOf(i, 0));
+		}
+		return block;
+	}
+
+	private void store(FeatureMatrix imageMatrix, Iterator<FeatureBlock> blocks) {
+		int[] feature = new int[this.getDepth()];
+		while (blocks.hasNext()) {
+			store(imageMatrix, blocks.next(), feature);
+		}
+	}
+
+	private void store(FeatureMatrix imageMatrix, FeatureBlock block,
+			int[] feature) {
+		if (imageMatrix.getLayout() == FeatureMatrix.Layout.INTERLEAVED) {
+			// Las filas del bloque son contiguas en la matriz
+			imageMatrix.getData().set(
+					imageMatrix.indexOf(block.getRowFrom(), 0, 0),
+					block.getFeatures(), 0, block.getFeatures().length);
+			return;
+		}
+		int last = block.getRowFrom() + block.getRowCount();
+		for (int i = block.getRowFrom(); i < last; i++) {
+			for (int j = 0; j < block.getWidth(); j++) {
+				block.getFeature(i, j, feature);
+				imageMatrix.setFeature(i, j, feature);
+			}
+		}
+	}
+
+	private FeatureMatrix createEmptyFeatureMatrix() {
+		String featureFile = params.get("featureFile");
+		if (featureFile == null) {
+			return new FeatureMatrix(image.getWidth(), image.getHeight(),
+					this.getDepth(), this.getLayout(), this.getElementType());
+		}
+
+		String segmentFile = params.get("segmentFile");
+		if (segmentFile == null) {
+			segmentFile = featureFile + ".segments";
+		}
+		try {
+			return FeatureMatrix.map(new File(featureFile), new File(
+					segmentFile), image.getWidth(), image.getHeight(), this
+					.getDepth(), this.getLayout(), this.getElementType());
+		} catch (IOException e) {
+			throw new RuntimeException("Nao foi possivel mapear o arquivo "
+					+ featureFile, e);
+		}
+	}
+
+	/**
+	 * @return La disposición de las features en la matriz resultante.
+	 */
+	protected FeatureMatrix.Layout getLayout() {
+		String s = params.get("featureLayout");
+		if (s != null) {
+			return FeatureMatrix.Layout.valueOf(s.toUpperCase());
+		}
+		return FeatureMatrix.Layout.INTERLEAVED;
+	}
+
+	/**
+	 * @return El tipo numérico con el que se guardan las features.
+	 */
+	protected ElementType getElementType() {
+		String s = params.get("featureType");
+		if (s != null) {
+			return ElementType.valueOf(s.toUpperCase());
+		}
+		return ElementType.forMaxValue(getMaxValue());
+	}
+
+	/**
+	 * @return El mayor valor que puede tomar una componente de la feature.
+	 * 		Las features nunca son negativas.
+	 */
+	protected int getMaxValue() {
+		return Integer.MAX_VALUE;
+	}
 	
+	/**
+	 * Indica si <code>createFeature</code> y <code>createFeatures</code>
+	 * pueden invocarse desde varios threads a la vez para filas distintas.
+	 * Los converters que guardan estado entre invocaciones deben tenerlo por
+	 * thread. Por defecto es <code>false</code> y la conversión es
+	 * secuencial.
+	 */
+	protected boolean isThreadSafe() {
+		return false;
+	}
+
 	/**
 	 * @return La dimensión del feature space.
 	 */
@@ -50,11 +271,70 @@ public abstract class ImageConverter {
 	/**
 	 * Computa la feature para un punto determinado de la imagen. El
 	 * vector que se recibe contiene la dimensión que se obtuvo
-	 * mediante <code>getDepth</code>.
+	 * mediante <code>getDepth</code> y está inicializado en cero.
 	 * 
 	 * @param i Fila del pixel a evaluar.
 	 * @param j Columna del pixel a evaluar.
 	 * @param feature Vector en el cual dejar la feature.
 	 */
 	protected abstract void createFeature(int i, int j, int[] feature);
+
+	/**
+	 * Computa las features de toda una fila de la imagen, una detrás de la
+	 * otra a partir de <code>offset</code>. El vector está inicializado en
+	 * cero. Por defecto invoca a <code>createFeature</code> para cada pixel;
+	 * los converters que pueden reutilizar cálculos entre pixels vecinos
+	 * pueden redefinirlo.
+	 * 
+	 * @param i Fila a evaluar.
+	 * @param features Vector en el cual dejar las features.
+	 * @param offset Posición de la feature del primer pixel de la fila.
+	 */
+	protected void createFeatures(int i, int[] features, int offset) {
+		int depth = getDepth();
+		int[] feature = new int[depth];
+		for (int j = 0; j < image.getWidth(); j++) {
+			Arrays.fill(feature, 0);
+			createFeature(i, j, feature);
+			System.arraycopy(feature, 0, features, offset + j * depth, depth);
+		}
+	}
+
+	/**
+	 * Convierte una franja de filas, dividiéndola a la mitad hasta llegar a
+	 * <code>grain</code> filas. Cada franja se recorre en orden, de a
+	 * bloques de <code>BLOCK_ROWS</code> filas.
+	 */
+	private class RowsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private FeatureMatrix imageMatrix;
+		private int rowFrom;
+		private int rowTo;
+		private int grain;
+
+		RowsTask(FeatureMatrix imageMatrix, int rowFrom, int rowTo, int grain) {
+			this.imageMatrix = imageMatrix;
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (rowTo - rowFrom > grain) {
+				int middle = (rowFrom + rowTo) >>> 1;
+				invokeAll(new RowsTask(imageMatrix, rowFrom, middle, grain),
+						new RowsTask(imageMatrix, middle, rowTo, grain));
+				return;
+			}
+
+			int[] feature = new int[getDepth()];
+			for (int i = rowFrom; i < rowTo; i += BLOCK_ROWS) {
+				store(imageMatrix, createBlock(i, Math.min(BLOCK_ROWS, rowTo
+						- i)), feature);
+			}
+		}
+	}
 }
@@ -2,10 +2,46 @@ package model.filters;
 
 public class BlurFilter extends ConvolutionFilter {
 
+	private int radius;
+
+	public BlurFilter() {
+		this(1);
+	}
+
+	/**
+	 * Blur binomial de lado <code>2 * radius + 1</code>; con radio 1 es la
+	 * matriz de 3x3 de siempre. Al ser separable, el costo por pixel crece
+	 * con el radio y no con el área.
+	 */
+	public BlurFilter(int radius) {
+		if (radius < 1) {
+			throw new IllegalArgumentException("radius = " + radius);
+		}
+		this.radius = radius;
+	}
+
 	@Override
 	protected double[][] getWeights() {
-		return new double[][] { { 1 / 16.0, 2 / 16.0, 1 / 16.0 },
-				{ 2 / 16.0, 4 / 16.0, 2 / 16.0 },
-				{ 1 / 16.0, 2 / 16.0, 1 / 16.0 } };
+		if (radius == 1) {
+			return new double[][] { { 1 / 16.0, 2 / 16.0, 1 / 16.0 },
+					{ 2 / 16.0, 4 / 16.0, 2 / 16.0 },
+					{ 1 / 16.0, 2 / 16.0, 1 / 16.0 } };
+		}
+
+		// Fila 2 * radius del triángulo de Pascal, normalizada
+		int size = 2 * radius + 1;
+		double[] binomial = new double[size];
+		binomial[0] = 1;
+		for (int k = 1; k < size; k++) {
+			binomial[k] = binomial[k - 1] * (size - k) / k;
+		}
+		double sum = Math.pow(2, size - 1);
+		double[][] weights = new double[size][size];
+		for (int m = 0; m < size; m++) {
+			for (int n = 0; n < size; n++) {
+				weights[m][n] = binomial[m] * binomial[n] / (sum * sum);
+			}
+		}
+		return weights;
 	}
 }
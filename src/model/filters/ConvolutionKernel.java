@@ -0,0 +1,365 @@
+package model.filters;
+
+import java.util.Arrays;
+
+import model.ImageMatrix;
+
+/**
+ * Núcleo de convolución en punto fijo sobre pixels empaquetados como ARGB.
+ * Acepta matrices de cualquier tamaño impar. Si la matriz es el producto de
+ * una columna por una fila (por ejemplo, un blur gaussiano o binomial), se
+ * aplica como dos pasadas de una dimensión, con costo proporcional al lado
+ * y no al área.
+ * <p>
+ * Los pesos se llevan a enteros multiplicándolos por el menor denominador
+ * común que no pase de MAX_DENOMINATOR (16 para el blur de 3x3, 10 para el
+ * sharpen), de modo que el resultado es exactamente el redondeo hacia abajo
+ * de la convolución. Si no hay uno, se redondean a SHIFT bits de fracción,
+ * corrigiendo el peso central para que la suma se conserve. La división
+ * final se hace con una multiplicación y un desplazamiento.
+ * <p>
+ * Fuera de la imagen se repite el pixel del borde más cercano. El alpha del
+ * resultado es siempre 255.
+ */
+final class ConvolutionKernel {
+
+	private static final int SHIFT = 14;
+	private static final int MAX_DENOMINATOR = 1024;
+	private static final double EPSILON = 1e-9;
+
+	private int height;
+	private int width;
+
+	/* Pesos enteros de la matriz, fila por fila, o null si es separable */
+	private int[] weights;
+
+	/* Factores enteros de una matriz separable */
+	private int[] column;
+	private int[] row;
+
+	/*
+	 * Denominador de los pesos (el producto de los de ambos factores si es
+	 * separable) y su inverso: acum / divisor == (acum * magic) >> magicShift
+	 * para todos los acumulados posibles, o magic == 0 si hay que dividir.
+	 */
+	private long divisor;
+	private long magic;
+	private int magicShift;
+
+	/* Bits que se descartan de cada fila filtrada horizontalmente */
+	private int rowShift;
+
+	ConvolutionKernel(double[][] matrix) {
+		this.height = matrix.length;
+		this.width = matrix[0].length;
+		if (height % 2 == 0 || width % 2 == 0) {
+			throw new IllegalArgumentException("Matriz de convolucao de "
+					+ height + "x" + width + ": os lados devem ser impares");
+		}
+
+		double[] columnFactor = new double[height];
+		double[] rowFactor = new double[width];
+		long maxSum;
+		if (factor(matrix, columnFactor, rowFactor)) {
+			int rowDenominator = denominator(rowFactor);
+			int columnDenominator = denominator(columnFactor);
+			if (255 * absoluteSum(quantize(rowFactor, rowDenominator))
+					* absoluteSum(quantize(columnFactor, columnDenominator)) > Integer.MAX_VALUE) {
+				// No entra en un int: se pasa a punto fijo binario
+				rowDenominator = 1 << SHIFT;
+				columnDenominator = 1 << SHIFT;
+			}
+			this.row = quantize(rowFactor, rowDenominator);
+			this.column = quantize(columnFactor, columnDenominator);
+
+			// Bits que se descartan de las filas horizontales para que el
+			// acumulado vertical entre en un int
+			long maxRow = 255 * absoluteSum(row);
+			while (maxRow * absoluteSum(column) > Integer.MAX_VALUE) {
+				rowShift++;
+				// El redondeo puede sumar uno
+				maxRow = ((255 * absoluteSum(row)) >> rowShift) + 1;
+			}
+			this.divisor = ((long) rowDenominator * columnDenominator) >> rowShift;
+			maxSum = maxRow * absoluteSum(column);
+		} else {
+			double[] flat = new double[height * width];
+			for (int m = 0; m < height; m++) {
+				System.arraycopy(matrix[m], 0, flat, m * width, width);
+			}
+			int denominator = denominator(flat);
+			this.weights = quantize(flat, denominator);
+			this.divisor = denominator;
+			maxSum = 255 * absoluteSum(weights);
+		}
+		if (maxSum > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Pesos da matriz de convolucao muito grandes");
+		}
+
+		// Busca un inverso exacto para todos los acumulados posibles
+		for (int shift = 32; shift < 63 && magic == 0; shift++) {
+			long m = ((1L << shift) + divisor - 1) / divisor;
+			if (maxSum * (m * divisor - (1L << shift)) < (1L << shift)) {
+				magic = m;
+				magicShift = shift;
+			}
+		}
+	}
+
+	boolean isSeparable() {
+		return weights == null;
+	}
+
+	/**
+	 * @return Cantidad de filas de vecinos a cada lado del pixel que se
+	 * 		necesitan para calcularlo.
+	 */
+	int getRadius() {
+		return height / 2;
+	}
+
+	/**
+	 * Convoluciona las filas <code>rowFrom</code> a <code>rowTo - 1</code>
+	 * de <code>input</code> y deja el resultado en las mismas filas de
+	 * <code>output</code>.
+	 * <p>
+	 * Los canales se separan en vectores de enteros, uno por canal y por
+	 * fila, y cada peso se suma a toda una fila de una vez; así los ciclos
+	 * internos son sumas de vectores que la JVM puede vectorizar.
+	 */
+	void convolve(ImageMatrix input, ImageMatrix output, int rowFrom,
+			int rowTo) {
+		int w = input.getWidth();
+		int h = input.getHeight();
+		int ry = height / 2;
+		int padded = w + 2 * (width / 2);
+		int[] data = input.getData();
+		int[] out = output.getData();
+
+		// Buffer circular con las últimas filas: separadas por canal con
+		// los bordes repetidos, o ya filtradas horizontalmente si la matriz
+		// es separable
+		int[][] rows = new int[height][3 * (isSeparable() ? w : padded)];
+		int[] rowOf = new int[height];
+		Arrays.fill(rowOf, Integer.MIN_VALUE);
+		int[][] window = new int[height][];
+		int[] channels = isSeparable() ? new int[3 * padded] : null;
+		int[] sums = new int[3 * w];
+
+		for (int i = rowFrom; i < rowTo; i++) {
+			for (int m = 0; m < height; m++) {
+				int y = i + m - ry;
+				int slot = Math.floorMod(y, height);
+				if (rowOf[slot] != y) {
+					int start = input.indexOf(clamp(y, h), 0);
+					if (isSeparable()) {
+						split(data, start, w, channels);
+						horizontal(channels, w, rows[slot]);
+					} else {
+						split(data, start, w, rows[slot]);
+					}
+					rowOf[slot] = y;
+				}
+				window[m] = rows[slot];
+			}
+
+			Arrays.fill(sums, 0);
+			if (isSeparable()) {
+				for (int m = 0; m < height; m++) {
+					int weight = column[m];
+					int[] filtered = window[m];
+					for (int k = 0; k < sums.length; k++) {
+						sums[k] += weight * filtered[k];
+					}
+				}
+			} else {
+				for (int m = 0, k = 0; m < height; m++) {
+					int[] split = window[m];
+					for (int n = 0; n < width; n++, k++) {
+						int weight = weights[k];
+						if (weight == 0) {
+							continue;
+						}
+						for (int c = 0; c < 3; c++) {
+							int from = c * padded + n;
+							int to = c * w;
+							for (int j = 0; j < w; j++) {
+								sums[to + j] += weight * split[from + j];
+							}
+						}
+					}
+				}
+			}
+
+			int o = output.indexOf(i, 0);
+			for (int j = 0; j < w; j++) {
+				out[o + j] = pack(divide(sums[j]), divide(sums[w + j]),
+						divide(sums[2 * w + j]));
+			}
+		}
+	}
+
+	/**
+	 * Separa los canales de una fila de la imagen, uno detrás del otro,
+	 * repitiendo el primer y el último pixel <code>width / 2</code> veces.
+	 */
+	private void split(int[] data, int start, int w, int[] channels) {
+		int radius = width / 2;
+		int padded = w + 2 * radius;
+		for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+			int base = c * padded + radius;
+			for (int j = 0; j < w; j++) {
+				channels[base + j] = (data[start + j] >> shift) & 0xff;
+			}
+			for (int k = 1; k <= radius; k++) {
+				channels[base - k] = channels[base];
+				channels[base + w - 1 + k] = channels[base + w - 1];
+			}
+		}
+	}
+
+	/**
+	 * Convoluciona horizontalmente una fila separada por canales.
+	 */
+	private void horizontal(int[] channels, int w, int[] filtered) {
+		int padded = w + 2 * (width / 2);
+		Arrays.fill(filtered, 0);
+		for (int c = 0; c < 3; c++) {
+			int to = c * w;
+			for (int n = 0; n < width; n++) {
+				int weight = row[n];
+				int from = c * padded + n;
+				for (int j = 0; j < w; j++) {
+					filtered[to + j] += weight * channels[from + j];
+				}
+			}
+		}
+		if (rowShift > 0) {
+			int half = 1 << (rowShift - 1);
+			for (int k = 0; k < filtered.length; k++) {
+				filtered[k] = (filtered[k] + half) >> rowShift;
+			}
+		}
+	}
+
+	/**
+	 * Intenta escribir la matriz como el producto de una columna por una
+	 * fila.
+	 *
+	 * @return <code>true</code> si la matriz es separable.
+	 */
+	private static boolean factor(double[][] matrix, double[] column,
+			double[] row) {
+		int pm = 0, pn = 0;
+		double max = 0;
+		for (int m = 0; m < matrix.length; m++) {
+			for (int n = 0; n < matrix[m].length; n++) {
+				if (Math.abs(matrix[m][n]) > max) {
+					max = Math.abs(matrix[m][n]);
+					pm = m;
+					pn = n;
+				}
+			}
+		}
+		if (max == 0) {
+			return false;
+		}
+
+		for (int m = 0; m < matrix.length; m++) {
+			column[m] = matrix[m][pn];
+		}
+		for (int n = 0; n < row.length; n++) {
+			row[n] = matrix[pm][n] / matrix[pm][pn];
+		}
+		for (int m = 0; m < matrix.length; m++) {
+			for (int n = 0; n < row.length; n++) {
+				if (Math.abs(matrix[m][n] - column[m] * row[n]) > EPSILON * max) {
+					return false;
+				}
+			}
+		}
+
+		// Reparte la escala entre los dos factores
+		double columnSum = 0, rowSum = 0;
+		for (double v : column) {
+			columnSum += v;
+		}
+		for (double v : row) {
+			rowSum += v;
+		}
+		if (Math.abs(rowSum) > EPSILON && Math.abs(columnSum) > EPSILON) {
+			for (int m = 0; m < column.length; m++) {
+				column[m] *= rowSum;
+			}
+			for (int n = 0; n < row.length; n++) {
+				row[n] /= rowSum;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return El acumulado dividido por el denominador de los pesos,
+	 * 		redondeado hacia abajo. Los negativos dan algún valor negativo.
+	 */
+	private int divide(int sum) {
+		if (magic != 0) {
+			return sum < 0 ? -1 : (int) ((sum * magic) >>> magicShift);
+		}
+		return (int) Math.floorDiv(sum, divisor);
+	}
+
+	/**
+	 * @return El menor entero que multiplicado por cada peso da un entero,
+	 * 		o 2^SHIFT si pasa de MAX_DENOMINATOR.
+	 */
+	private static int denominator(double[] values) {
+		next: for (int d = 1; d <= MAX_DENOMINATOR; d++) {
+			for (double v : values) {
+				if (Math.abs(v * d - Math.rint(v * d)) > EPSILON * d) {
+					continue next;
+				}
+			}
+			return d;
+		}
+		return 1 << SHIFT;
+	}
+
+	/**
+	 * Multiplica los pesos por <code>denominator</code> y los redondea,
+	 * ajustando el central para que la suma sea la de los pesos redondeada.
+	 */
+	private static int[] quantize(double[] values, int denominator) {
+		int[] fixed = new int[values.length];
+		double sum = 0;
+		long fixedSum = 0;
+		for (int k = 0; k < values.length; k++) {
+			fixed[k] = (int) Math.round(values[k] * denominator);
+			sum += values[k];
+			fixedSum += fixed[k];
+		}
+		fixed[values.length / 2] += Math.round(sum * denominator) - fixedSum;
+		return fixed;
+	}
+
+	private static long absoluteSum(int[] values) {
+		long sum = 0;
+		for (int v : values) {
+			sum += Math.abs(v);
+		}
+		return sum;
+	}
+
+	private static int clamp(int index, int size) {
+		return index < 0 ? 0 : index >= size ? size - 1 : index;
+	}
+
+	private static int pack(int r, int g, int b) {
+		return 0xff000000 | channel(r) << 16 | channel(g) << 8 | channel(b);
+	}
+
+	private static int channel(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+}
@@ -1,10 +1,11 @@
 package model.filters;
 
 import java.awt.Color;
+import java.util.Arrays;
 
 import model.ImageMatrix;
 
-public class EqualizeFilter implements FilterAlgorithm {
+public class EqualizeFilter implements StripFilter {
 
 	private static final int CHANNELS_RESOLUTION = 256;
 
@@ -25,19 +26,35 @@ public class EqualizeFilter implements FilterAlgorithm {
 
 	//@Override
 	public void filter(ImageMatrix input, ImageMatrix output) {
+		prepare(input);
+		filter(input, output, 0, input.getHeight());
+	}
+
+	public int getRadius() {
+		return 0;
+	}
+
+	/**
+	 * Calcula los histogramas de toda la imagen y la nueva intensidad de
+	 * cada valor de cada canal.
+	 */
+	public void prepare(ImageMatrix input) {
 		computeHistograms(input);
 		computeNewColors();
+	}
 
+	public void filter(ImageMatrix input, ImageMatrix output, int rowFrom,
+			int rowTo) {
 		Color c;
 		int r, g, b;
-		for (int i = 0; i < input.getHeight(); i++) {
+		for (int i = rowFrom; i < rowTo; i++) {
 			for (int j = 0; j < input.getWidth(); j++) {
-				c = new Color(input.getPixels()[i][j]);
+				c = new Color(input.getRGB(i, j));
 
 				r = newRed[c.getRed()];
 				g = newGreen[c.getGreen()];
 				b = newBlue[c.getBlue()];
-				output.getPixels()[i][j] = new Color(r, g, b).getRGB();
+				output.setRGB(i, j, new Color(r, g, b).getRGB());
 			}
 		}
 
@@ -45,10 +62,13 @@ public class EqualizeFilter implements FilterAlgorithm {
 
 	private void computeHistograms(ImageMatrix image) {
 		Color c;
+		Arrays.fill(redHistogram, 0);
+		Arrays.fill(greenHistogram, 0);
+		Arrays.fill(blueHistogram, 0);
 
 		for (int i = 0; i < image.getHeight(); i++) {
 			for (int j = 0; j < image.getWidth(); j++) {
-				c = new Color(image.getPixels()[i][j]);
+				c = new Color(image.getRGB(i, j));
 				redHistogram[c.getRed()]++;
 				greenHistogram[c.getGreen()]++;
 				blueHistogram[c.getBlue()]++;
@@ -1,39 +1,66 @@
 package model.filters;
 
-import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
-
 import model.ImageMatrix;
 
-public abstract class NeighboursFilter implements FilterAlgorithm {
+/**
+ * Filtro que calcula cada pixel a partir de sus vecinos. Los valores de
+ * cada canal de los vecinos se juntan en vectores que se reutilizan de un
+ * pixel al siguiente, y las subclases los combinan canal por canal en
+ * <code>reduce</code>, sin crear objetos por pixel.
+ */
+public abstract class NeighboursFilter implements StripFilter {
+
+	private static final int XMOVES[] = { 1, -1, 0, 1, -1, 0, 1, -1 };
+	private static final int YMOVES[] = { 0, 0, 1, 1, 1, -1, -1, -1 };
 
 	//@Override
 	public void filter(ImageMatrix input, ImageMatrix output) {
-		int xmoves[] = { 1, -1, 0, 1, -1, 0, 1, -1 };
-		int ymoves[] = { 0, 0, 1, 1, 1, -1, -1, -1 };
-		
-		Color c;
+		filter(input, output, 0, input.getHeight());
+	}
+
+	public int getRadius() {
+		return 1;
+	}
+
+	public void prepare(ImageMatrix input) {
+	}
+
+	public void filter(ImageMatrix input, ImageMatrix output, int rowFrom,
+			int rowTo) {
+		int[] red = new int[XMOVES.length];
+		int[] green = new int[XMOVES.length];
+		int[] blue = new int[XMOVES.length];
 
-		for (int i = 0; i < input.getHeight(); i++) {
+		for (int i = rowFrom; i < rowTo; i++) {
 			for (int j = 0; j < input.getWidth(); j++) {
 
-				List<int[]> rgbs = new ArrayList<int[]>();
-				for (int k = 0; k < xmoves.length; k++) {
-					if (i + ymoves[k] > 0 && i + ymoves[k] < input.getHeight()
-							&& j + xmoves[k] > 0
-							&& j + xmoves[k] < input.getWidth()) {
-						c = new Color(input.getPixels()[i + ymoves[k]][j
-								+ xmoves[k]]);
-						rgbs.add(new int[] {c.getRed(), c.getGreen(), c.getBlue()});
+				int count = 0;
+				for (int k = 0; k < XMOVES.length; k++) {
+					if (i + YMOVES[k] > 0 && i + YMOVES[k] < input.getHeight()
+							&& j + XMOVES[k] > 0
+							&& j + XMOVES[k] < input.getWidth()) {
+						int pixel = input.getRGB(i + YMOVES[k], j + XMOVES[k]);
+						red[count] = (pixel >> 16) & 0xff;
+						green[count] = (pixel >> 8) & 0xff;
+						blue[count] = pixel & 0xff;
+						count++;
 					}
 				}
-				output.getPixels()[i][j] = getFinalColor(rgbs);
+				output.setRGB(i, j, 0xff000000 | reduce(red, count) << 16
+						| reduce(green, count) << 8 | reduce(blue, count));
 			}
 		}
 
 	}
 
-	protected abstract int getFinalColor(List<int[]> rgbs);
+	/**
+	 * Combina un canal de los vecinos de un pixel.
+	 * 
+	 * @param values Valor del canal, entre 0 y 255, en cada vecino. Sólo
+	 * 		valen las primeras <code>count</code> posiciones.
+	 * @param count Cantidad de vecinos.
+	 * @return Valor del canal en el pixel filtrado, entre 0 y 255.
+	 */
+	protected abstract int reduce(int[] values, int count);
 
 }
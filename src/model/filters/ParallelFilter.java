@@ -0,0 +1,98 @@
+package model.filters;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import model.ImageMatrix;
+
+/**
+ * Aplica un <code>StripFilter</code> repartiendo la salida en franjas de
+ * filas entre los threads de un <code>ForkJoinPool</code>. Cada franja lee
+ * además <code>getRadius()</code> filas de la entrada a cada lado; las
+ * franjas tienen varias veces esa altura para que esas filas repetidas no
+ * pesen.
+ * <p>
+ * Si la entrada y la salida son la misma imagen, se filtra una copia de la
+ * entrada, porque las franjas leen filas que otras ya escribieron.
+ */
+public class ParallelFilter implements FilterAlgorithm {
+
+	private static final int MIN_ROWS = 16;
+
+	private StripFilter filter;
+	private int parallelism;
+
+	public ParallelFilter(StripFilter filter) {
+		this(filter, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelFilter(StripFilter filter, int parallelism) {
+		this.filter = filter;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public void filter(ImageMatrix input, ImageMatrix output) {
+		if (input == output || input.getData() == output.getData()) {
+			input = copy(input);
+		}
+		filter.prepare(input);
+
+		int height = input.getHeight();
+		if (parallelism == 1) {
+			filter.filter(input, output, 0, height);
+			return;
+		}
+
+		// Algunas franjas por thread para equilibrar la carga
+		int grain = Math.max((height + parallelism * 4 - 1)
+				/ (parallelism * 4), Math.max(MIN_ROWS, 8 * filter
+				.getRadius()));
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new StripTask(input, output, 0, height, grain));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static ImageMatrix copy(ImageMatrix image) {
+		ImageMatrix copy = new ImageMatrix(image.getWidth(), image
+				.getHeight());
+		for (int i = 0; i < image.getHeight(); i++) {
+			System.arraycopy(image.getData(), image.indexOf(i, 0), copy
+					.getData(), copy.indexOf(i, 0), image.getWidth());
+		}
+		return copy;
+	}
+
+	private class StripTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private ImageMatrix input;
+		private ImageMatrix output;
+		private int rowFrom;
+		private int rowTo;
+		private int grain;
+
+		StripTask(ImageMatrix input, ImageMatrix output, int rowFrom,
+				int rowTo, int grain) {
+			this.input = input;
+			this.output = output;
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (rowTo - rowFrom > grain) {
+				int middle = (rowFrom + rowTo) >>> 1;
+				invokeAll(new StripTask(input, output, rowFrom, middle, grain),
+						new StripTask(input, output, middle, rowTo, grain));
+				return;
+			}
+			filter.filter(input, output, rowFrom, rowTo);
+		}
+	}
+}
@@ -4,15 +4,27 @@ import java.awt.Color;
 
 import model.ImageMatrix;
 
-public class ReduceResolutionFilter implements FilterAlgorithm {
+public class ReduceResolutionFilter implements StripFilter {
 
 	//@Override
 	public void filter(ImageMatrix input, ImageMatrix output) {
+		filter(input, output, 0, input.getHeight());
+	}
+
+	public int getRadius() {
+		return 0;
+	}
+
+	public void prepare(ImageMatrix input) {
+	}
+
+	public void filter(ImageMatrix input, ImageMatrix output, int rowFrom,
+			int rowTo) {
 		float[] hsbvals = new float[3];
 		float newval[] = new float[3];
-		for (int i = 0; i < input.getHeight(); i++) {
+		for (int i = rowFrom; i < rowTo; i++) {
 			for (int j = 0; j < input.getWidth(); j++) {
-				Color c = new Color(input.getPixels()[i][j]);
+				Color c = new Color(input.getRGB(i, j));
 				hsbvals = Color.RGBtoHSB(c.getRed(), c.getGreen(), c.getBlue(),
 						hsbvals);
 				/* Como representamos el pixel */
@@ -25,8 +37,8 @@ public class ReduceResolutionFilter implements FilterAlgorithm {
 					newval[1] = 1;
 					newval[2] = 1;
 				}
-				output.getPixels()[i][j] = Color.HSBtoRGB(newval[0], newval[1],
-						newval[2]);
+				output.setRGB(i, j, Color.HSBtoRGB(newval[0], newval[1],
+						newval[2]));
 
 			}
 		}
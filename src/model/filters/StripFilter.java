@@ -0,0 +1,33 @@
+package model.filters;
+
+import model.ImageMatrix;
+
+/**
+ * Filtro que puede calcular la salida por franjas de filas independientes,
+ * de modo que <code>ParallelFilter</code> puede repartirlas entre varios
+ * threads.
+ */
+public interface StripFilter extends FilterAlgorithm {
+
+	/**
+	 * @return Cantidad de filas vecinas, a cada lado, que se leen de la
+	 * 		entrada para calcular una fila de la salida.
+	 */
+	public int getRadius();
+
+	/**
+	 * Calcula lo que depende de toda la imagen (por ejemplo, histogramas)
+	 * antes de filtrar las franjas. Se invoca una vez por imagen, desde un
+	 * único thread.
+	 */
+	public void prepare(ImageMatrix input);
+
+	/**
+	 * Filtra las filas <code>rowFrom</code> a <code>rowTo - 1</code>. Puede
+	 * leer hasta <code>getRadius()</code> filas de la entrada fuera de la
+	 * franja, pero sólo escribe las de la franja. Se puede invocar desde
+	 * varios threads a la vez con franjas distintas.
+	 */
+	public void filter(ImageMatrix input, ImageMatrix output, int rowFrom,
+			int rowTo);
+}
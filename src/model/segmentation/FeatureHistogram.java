@@ -0,0 +1,154 @@
+package model.segmentation;
+
+import java.util.Arrays;
+
+import model.FeatureMatrix;
+
+/**
+ * Histograma dos vetores de features distintos de uma imagem: cada vetor
+ * aparece uma unica vez, com a quantidade de pixels que o tem. Usa uma
+ * tabela hash de enderecamento aberto sobre vetores primitivos.
+ * <p>
+ * Depois de construido, pode ser consultado por varias threads ao mesmo
+ * tempo.
+ */
+final class FeatureHistogram {
+
+	private int depth;
+	private int size;
+	private int[] vectors;
+	private long[] weights;
+
+	/* Indice + 1 do vetor em cada posicao, ou 0 se a posicao esta livre */
+	private int[] table;
+
+	FeatureHistogram(int depth, int capacity) {
+		this.depth = depth;
+		this.vectors = new int[capacity * depth];
+		this.weights = new long[capacity];
+		this.table = new int[Integer.highestOneBit(Math.max(2, capacity)) << 1];
+	}
+
+	/**
+	 * Constroi o histograma de uma imagem.
+	 *
+	 * @param maxSize Quantidade maxima de vetores distintos.
+	 * @return O histograma, ou <code>null</code> se a imagem tiver mais de
+	 * 		<code>maxSize</code> vetores distintos.
+	 */
+	static FeatureHistogram of(FeatureMatrix image, int maxSize) {
+		FeatureHistogram histogram = new FeatureHistogram(image.getDepth(),
+				1024);
+		int[] feature = new int[image.getDepth()];
+		for (int i = 0; i < image.getHeight(); i++) {
+			for (int j = 0; j < image.getWidth(); j++) {
+				image.getFeature(i, j, feature);
+				histogram.add(feature, 1);
+				if (histogram.size > maxSize) {
+					return null;
+				}
+			}
+		}
+		return histogram;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int depth() {
+		return depth;
+	}
+
+	/**
+	 * @return Os vetores distintos, um apos o outro. O vetor pode ser maior
+	 * 		que <code>size() * depth()</code>.
+	 */
+	int[] vectors() {
+		return vectors;
+	}
+
+	/**
+	 * @return A quantidade de pixels de cada vetor.
+	 */
+	long[] weights() {
+		return weights;
+	}
+
+	/**
+	 * Soma <code>weight</code> ao peso do vetor, adicionando-o se nao
+	 * existir.
+	 *
+	 * @return Indice do vetor.
+	 */
+	int add(int[] feature, long weight) {
+		int slot = find(feature);
+		if (table[slot] != 0) {
+			weights[table[slot] - 1] += weight;
+			return table[slot] - 1;
+		}
+
+		if (size == weights.length) {
+			vectors = Arrays.copyOf(vectors, vectors.length * 2);
+			weights = Arrays.copyOf(weights, weights.length * 2);
+		}
+		System.arraycopy(feature, 0, vectors, size * depth, depth);
+		weights[size] = weight;
+		table[slot] = ++size;
+
+		// Mantem a tabela com no maximo metade das posicoes ocupadas
+		if (size * 2 > table.length) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	/**
+	 * @return Indice do vetor, ou -1 se nao existir.
+	 */
+	int indexOf(int[] feature) {
+		return table[find(feature)] - 1;
+	}
+
+	private int find(int[] feature) {
+		int mask = table.length - 1;
+		int slot = hash(feature, 0) & mask;
+		while (table[slot] != 0
+				&& !equals(feature, (table[slot] - 1) * depth)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		int[] old = table;
+		table = new int[old.length * 2];
+		int mask = table.length - 1;
+		for (int entry : old) {
+			if (entry != 0) {
+				int slot = hash(vectors, (entry - 1) * depth) & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = entry;
+			}
+		}
+	}
+
+	private boolean equals(int[] feature, int base) {
+		for (int i = 0; i < depth; i++) {
+			if (vectors[base + i] != feature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int hash(int[] values, int base) {
+		int h = 0;
+		for (int i = 0; i < depth; i++) {
+			h = (h + values[base + i]) * 0x9E3779B1;
+		}
+		return h ^ (h >>> 16);
+	}
+}
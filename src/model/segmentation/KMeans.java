@@ -1,24 +1,101 @@
 package model.segmentation;
 
-import java.awt.Point;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import model.FeatureMatrix;
 import model.SegmentationObserver;
 
 /**
  * Metodo K-means para segmentacao.
+ * <p>
+ * A atribuicao de cada pixel ao cluster mais proximo e feita em paralelo,
+ * dividindo a imagem em faixas de linhas sobre um <code>ForkJoinPool</code>.
+ * Cada faixa acumula as somas parciais dos clusters, que depois sao
+ * combinadas para calcular os novos centroides sem percorrer a imagem de
+ * novo. O parametro "parallelism" define a quantidade de threads (por
+ * padrao, a quantidade de processadores).
+ * <p>
+ * O unico estado por pixel e o segmento guardado na
+ * <code>FeatureMatrix</code>; os centroides e os acumuladores sao vetores
+ * planos alocados uma vez, de modo que as iteracoes nao alocam memoria.
+ * <p>
+ * O parametro "init" escolhe como comecar: "random" coloca cada pixel em
+ * um cluster ao acaso; "kmeans++" escolhe os centroides com k-means++ sobre
+ * todos os pixels; e "subsample" (o padrao) aplica k-means++ sobre
+ * "sampleSize" pixels sorteados, com custo independente do tamanho da
+ * imagem. O parametro "seed" torna os resultados reproduziveis.
+ * <p>
+ * Com o parametro "accelerated" ativo, usa o algoritmo de Hamerly: guarda
+ * para cada pixel um limite superior da distancia ao seu centroide e um
+ * limite inferior da distancia ao segundo mais proximo, e os corrige com o
+ * deslocamento dos centroides a cada iteracao. Os pixels cujos limites
+ * garantem que o cluster nao muda sao pulados sem ler as suas features, e
+ * as somas dos clusters sao atualizadas apenas com os pixels que mudam. O
+ * resultado e o mesmo, ao custo de dois <code>float</code> por pixel,
+ * guardados em vetores separados por faixa. Se esses vetores nao couberem
+ * no heap, <code>process</code> lanca <code>IllegalStateException</code>.
+ * <p>
+ * Com o parametro "quantized" ativo, a imagem e reduzida primeiro a um
+ * histograma dos seus vetores de features distintos, cada um com a
+ * quantidade de pixels que o tem. As iteracoes agrupam os vetores distintos
+ * com esses pesos, o que da os mesmos centroides que agrupar os pixels, e os
+ * clusters sao copiados para os pixels numa unica passada no final. Em
+ * imagens com poucas cores, cada iteracao fica muito mais barata. Se a
+ * imagem tiver mais de "maxColors" vetores distintos, usa o metodo comum.
+ * Neste modo, "kmeans++" e "subsample" aplicam k-means++ sobre os vetores
+ * distintos, e "random" coloca cada vetor distinto em um cluster ao acaso.
+ * Os vetores distintos sao atribuidos em paralelo, em intervalos sobre o
+ * <code>ForkJoinPool</code>. O observador e notificado a cada iteracao, mas
+ * os clusters so sao copiados para os pixels, como previa, a cada
+ * "previewInterval" iteracoes (por padrao 10; com 0, so no final), ja que
+ * a copia percorre a imagem inteira.
  */
 public class KMeans extends SegmentationAlgorithm {
 
-	private Cluster[] clusters;
 	private FeatureMatrix image;
 	private SegmentationObserver observer;
 	private boolean useAllClusters = false;
 	private int clustersCount = 10;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private String init = "subsample";
+	private int sampleSize = 10000;
+	private boolean accelerated = false;
+	private boolean quantized = false;
+	private int maxColors = 1 << 20;
+	private int previewInterval = 10;
+	private Random random = new Random();
+
+	/* Centroides, um apos o outro, e se cada cluster tem centroide */
+	private int[] centroids;
+	private boolean[] hasCentroid;
+
+	/* Somas das features e quantidade de pixels de cada cluster */
+	private long[] sums;
+	private long[] counts;
+
+	/* Por cluster, o deslocamento do centroide e a metade da distancia ao
+	 * centroide mais proximo; os limites de Hamerly ficam em cada faixa */
+	private int[] previousCentroids;
+	private double[] drifts;
+	private double[] halfDistances;
+	private double maxDrift;
+	private double secondMaxDrift;
+	private int maxDriftCluster;
+
+	/* No modo quantizado, os vetores distintos e o cluster de cada um */
+	private FeatureHistogram histogram;
+	private int[] vectorClusters;
+
+	/* Quantidade de vetores distintos abaixo da qual uma tarefa nao se divide */
+	private static final int GRAIN = 1024;
+
+	private Band[] bands;
+	private Pass pass;
+	private boolean assigning;
 
 	public void process(FeatureMatrix image, SegmentationObserver observer, HashMap<String, String> params) {
 		this.image = image;
@@ -34,169 +111,643 @@ public class KMeans extends SegmentationAlgorithm {
 			clustersCount = new Integer(s);
 		}
 
-		this.clusters = new Cluster[clustersCount];
+		s = params.get("parallelism");
+		if (s != null) {
+			parallelism = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("init");
+		if (s != null) {
+			init = s.toLowerCase();
+		}
 
+		s = params.get("sampleSize");
+		if (s != null) {
+			sampleSize = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("seed");
+		if (s != null) {
+			random = new Random(Long.parseLong(s));
+		}
+
+		s = params.get("accelerated");
+		if (s != null) {
+			accelerated = Integer.parseInt(s) != 0;
+		}
+		if (accelerated
+				&& 8L * image.getWidth() * image.getHeight() > Runtime
+						.getRuntime().maxMemory() / 2) {
+			throw new IllegalStateException("Limites de Hamerly grandes "
+					+ "demais para o heap: use accelerated=0");
+		}
+
+		s = params.get("quantized");
+		if (s != null) {
+			quantized = Integer.parseInt(s) != 0;
+		}
+
+		s = params.get("maxColors");
+		if (s != null) {
+			maxColors = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("previewInterval");
+		if (s != null) {
+			previewInterval = Math.max(0, Integer.parseInt(s));
+		}
+
+		int depth = image.getDepth();
+		this.centroids = new int[clustersCount * depth];
+		this.hasCentroid = new boolean[clustersCount];
+		this.sums = new long[clustersCount * depth];
+		this.counts = new long[clustersCount];
+		if (accelerated) {
+			this.previousCentroids = new int[clustersCount * depth];
+			this.drifts = new double[clustersCount];
+			this.halfDistances = new double[clustersCount];
+		}
+
+		// Algumas faixas por thread para equilibrar a carga
+		int bandCount = Math.min(image.getHeight(), parallelism * 4);
+		this.bands = new Band[Math.max(1, bandCount)];
+		for (int b = 0; b < bands.length; b++) {
+			bands[b] = new Band((int) ((long) b * image.getHeight()
+					/ bands.length), (int) ((b + 1L) * image.getHeight()
+					/ bands.length));
+		}
+		this.pass = new Pass();
 	}
 
-	private void generateClusters() {
+	private void generateClusters(ForkJoinPool pool) {
 		boolean hasChanged = true;
-		boolean[] clustersEmptyStatus = new boolean[clusters.length];		
 
 		// Enquanto nao ha mudancas nos clusters
 		while (hasChanged && !isInterrupted()) {
-			for (int i = 0; i < clustersEmptyStatus.length; i++) {
-				clustersEmptyStatus[i] = true;
-            }
-			hasChanged = false;
+
+			// Se o cluster nao esta ocupado, coloca um pixel nele
+			if (useAllClusters) {
+				fillEmptyClusters();
+			}
 
 			// Coloca cada objeto no cluster mais proximo
-			for (int k = 0; k < clusters.length; k++) {
-				Cluster c = clusters[k];
-				for (int i = 0; i < c.getObjects().size(); i++) {
-					Point object = c.getObjects().get(i);
-					int bestCluster = -1;
+			hasChanged = runPass(pool, true) > 0;
+
+			if (observer != null) {
+				observer.onChange();
+			}
+		}
+		if (observer != null) {
+			observer.onComplete();
+		}
+	}
 
-					double minDistance = Double.MAX_VALUE;
+	/**
+	 * Percorre a imagem em paralelo e recalcula os centroides a partir das
+	 * somas de cada faixa.
+	 *
+	 * @param assign Se deve colocar cada pixel no cluster mais proximo antes
+	 * 		de acumula-lo.
+	 * @return Quantidade de pixels que mudaram de cluster.
+	 */
+	private int runPass(ForkJoinPool pool, boolean assign) {
+		assigning = assign;
+		pass.reinitialize();
+		pool.invoke(pass);
+
+		// No modo acelerado as faixas trazem apenas as diferencas
+		if (!(accelerated && assign)) {
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+		}
 
-					// Busca o cluster que tem seu centroide mais proximo deste objeto
-					for (int m = 0; m < clusters.length; m++) {
+		int changes = 0;
+		for (Band band : bands) {
+			changes += band.changes;
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += band.sums[i];
+			}
+			for (int k = 0; k < clustersCount; k++) {
+				counts[k] += band.counts[k];
+			}
+		}
 
-						// Se o cluster nao esta ocupado, coloca ele la
-						if (useAllClusters && (clusters[m].getCentroid() == null && clustersEmptyStatus[m])) {
-							bestCluster = m;
-							minDistance = 0;
-							clustersEmptyStatus[m] = false;
-						} else {
-							if (clusters[m].getCentroid() != null
-									&& distanceBetween(KMeans.this.image
-											.getData()[object.y][object.x],
-											clusters[m].getCentroid()) < minDistance) {
-								bestCluster = m;
-								minDistance = distanceBetween(KMeans.this.image
-										.getData()[object.y][object.x],
-										clusters[m].getCentroid());
-							}
-						}
-					}
+		if (accelerated) {
+			System.arraycopy(centroids, 0, previousCentroids, 0,
+					centroids.length);
+		}
 
-					// Verifica se e necessario colocar o objeto em um novo cluster
-					if (bestCluster != k) {
-						hasChanged = true;
-						KMeans.this.image.getSegment()[object.y][object.x] = (byte) bestCluster;
-					}
-				}
+		updateCentroids();
 
+		if (accelerated) {
+			updateDrifts();
+		}
+		return changes;
+	}
+
+	/**
+	 * Recalcula os centroides a partir de <code>sums</code> e
+	 * <code>counts</code>.
+	 */
+	private void updateCentroids() {
+		int depth = image.getDepth();
+		for (int k = 0; k < clustersCount; k++) {
+			hasCentroid[k] = counts[k] > 0;
+			if (counts[k] == 0) {
+				continue;
 			}
+			for (int i = k * depth; i < (k + 1) * depth; i++) {
+				centroids[i] = (int) (sums[i] / counts[k]);
+			}
+		}
+	}
 
-			rebuildClusters();
+	/**
+	 * Agrupa os vetores distintos do histograma, com o peso de cada um, e
+	 * depois copia o cluster de cada vetor para os seus pixels.
+	 */
+	private void generateQuantizedClusters(ForkJoinPool pool) {
+		int depth = image.getDepth();
+		int size = histogram.size();
+		int[] vectors = histogram.vectors();
+		long[] weights = histogram.weights();
+		int[] feature = new int[depth];
+
+		vectorClusters = new int[size];
+		if (init.equals("random")) {
+			for (int v = 0; v < size; v++) {
+				vectorClusters[v] = random.nextInt(clustersCount);
+			}
+			accumulateVectors(vectors, weights, feature);
+			updateCentroids();
+		} else {
+			Arrays.fill(vectorClusters, -1);
+			plusPlusInit(KMeansInit.of(vectors, weights, size, depth));
+		}
 
+		// Alguns intervalos por thread para equilibrar a carga
+		int grain = Math.max(GRAIN, (size + parallelism * 4 - 1)
+				/ (parallelism * 4));
+		boolean hasChanged = true;
+		boolean copied = false;
+		int iteration = 0;
+		while (hasChanged && !isInterrupted()) {
+			if (useAllClusters) {
+				fillEmptyClusters();
+			}
+
+			VectorTask task = new VectorTask(0, size, grain);
+			pool.invoke(task);
+			hasChanged = task.changed;
+			accumulateVectors(vectors, weights, feature);
+			updateCentroids();
+
+			// A previa copia os clusters para os pixels a cada
+			// previewInterval iteracoes, comecando pela primeira
+			copied = false;
 			if (observer != null) {
+				if (previewInterval > 0 && iteration % previewInterval == 0) {
+					pass.reinitialize();
+					pool.invoke(pass);
+					copied = true;
+				}
 				observer.onChange();
 			}
+			iteration++;
 		}
+
+		// Copia os clusters para os pixels
+		if (!copied) {
+			pass.reinitialize();
+			pool.invoke(pass);
+		}
+
 		if (observer != null) {
 			observer.onComplete();
 		}
 	}
 
-	private void rebuildClusters() {
-
-		this.clusters = new Cluster[this.clusters.length];
+	private void accumulateVectors(int[] vectors, long[] weights,
+			int[] feature) {
+		int depth = feature.length;
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		for (int v = 0; v < histogram.size(); v++) {
+			int base = vectorClusters[v] * depth;
+			for (int i = 0; i < depth; i++) {
+				sums[base + i] += vectors[v * depth + i] * weights[v];
+			}
+			counts[vectorClusters[v]] += weights[v];
+		}
+	}
 
-		for (int i = 0; i < clusters.length; i++) {
-			clusters[i] = new Cluster();
+	/**
+	 * Calcula quanto se moveu cada centroide e a metade da distancia de cada
+	 * centroide ao mais proximo dos outros.
+	 */
+	private void updateDrifts() {
+		int depth = image.getDepth();
+		maxDrift = secondMaxDrift = 0;
+		maxDriftCluster = -1;
+		for (int k = 0; k < clustersCount; k++) {
+			drifts[k] = Math.sqrt(squaredDistance(centroids, k * depth,
+					previousCentroids, k * depth, depth));
+			if (drifts[k] > maxDrift) {
+				secondMaxDrift = maxDrift;
+				maxDrift = drifts[k];
+				maxDriftCluster = k;
+			} else if (drifts[k] > secondMaxDrift) {
+				secondMaxDrift = drifts[k];
+			}
 		}
+		updateHalfDistances();
+	}
 
-		for (int i = 0; i < image.getHeight(); i++) {
-			for (int j = 0; j < image.getWidth(); j++) {
-				clusters[image.getSegment()[i][j]].add(new Point(j, i));
+	private void updateHalfDistances() {
+		int depth = image.getDepth();
+		for (int k = 0; k < clustersCount; k++) {
+			double min = Double.POSITIVE_INFINITY;
+			for (int m = 0; m < clustersCount; m++) {
+				if (m != k && hasCentroid[m]) {
+					min = Math.min(min, squaredDistance(centroids, k * depth,
+							centroids, m * depth, depth));
+				}
 			}
+			halfDistances[k] = Math.nextDown(Math.sqrt(min) / 2);
 		}
+	}
 
-        for (Cluster cluster : clusters) {
-            cluster.updateCentroid();
-        }
+	private static long squaredDistance(int[] a, int baseA, int[] b,
+			int baseB, int depth) {
+		long distance = 0;
+		for (int i = 0; i < depth; i++) {
+			long d = a[baseA + i] - b[baseB + i];
+			distance += d * d;
+		}
+		return distance;
+	}
 
+	private void fillEmptyClusters() {
+		int depth = image.getDepth();
+		int[] feature = new int[depth];
+		boolean filled = false;
+		for (int k = 0; k < clustersCount; k++) {
+			if (!hasCentroid[k]) {
+				image.getFeature(random.nextInt(image.getHeight()),
+						random.nextInt(image.getWidth()), feature);
+				System.arraycopy(feature, 0, centroids, k * depth, depth);
+				hasCentroid[k] = true;
+
+				// Os limites inferiores nao consideravam este centroide
+				if (accelerated) {
+					drifts[k] = Double.POSITIVE_INFINITY;
+					maxDrift = Double.POSITIVE_INFINITY;
+					maxDriftCluster = -1;
+				}
+				filled = true;
+			}
+		}
+		if (accelerated && filled) {
+			updateHalfDistances();
+		}
+	}
+
+	/**
+	 * Escolhe os centroides iniciais com k-means++. Os clusters que ficarem
+	 * sem centroide serao ocupados se <code>useAllClusters</code> estiver
+	 * ativo.
+	 */
+	private void plusPlusInit(KMeansInit.Points points) {
+		int count = KMeansInit.plusPlus(points, clustersCount, random,
+				centroids);
+		for (int k = 0; k < clustersCount; k++) {
+			hasCentroid[k] = k < count;
+		}
 	}
 
 	private void randomInit() {
 
-		Random r = new Random();
 		for (int i = 0; i < image.getHeight(); i++) {
 			for (int j = 0; j < image.getWidth(); j++) {
-				int clusterIndex = r.nextInt(clusters.length);
-				image.getSegment()[i][j] = (byte) clusterIndex;
+				int clusterIndex = random.nextInt(clustersCount);
+				image.setSegment(i, j, clusterIndex);
 			}
 		}
 
 	}
 
-	private double distanceBetween(int[] vec1, int[] vec2) {
+	/**
+	 * Busca o cluster que tem seu centroide mais proximo deste objeto. As
+	 * distancias sao comparadas ao quadrado, e a soma de cada candidato e
+	 * abandonada assim que passa da melhor ate o momento.
+	 *
+	 * @param feature Vetor do objeto.
+	 * @param centroids Centroides, um apos o outro.
+	 * @param hasCentroid Se cada cluster tem centroide.
+	 * @param clustersCount Quantidade de clusters.
+	 * @return Indice do cluster mais proximo.
+	 */
+	static int nearestCluster(int[] feature, int[] centroids,
+			boolean[] hasCentroid, int clustersCount) {
+		int depth = feature.length;
+		int bestCluster = -1;
+		long minDistance = Long.MAX_VALUE;
+
+		for (int m = 0, base = 0; m < clustersCount; m++, base += depth) {
+			if (!hasCentroid[m]) {
+				continue;
+			}
+			long distance = 0;
+			for (int i = 0; i < depth && distance < minDistance; i++) {
+				long d = feature[i] - centroids[base + i];
+				distance += d * d;
+			}
+			if (distance < minDistance) {
+				bestCluster = m;
+				minDistance = distance;
+			}
+		}
+		return bestCluster;
+	}
 
-		double dist = 0;
+	public void run() {
+		image.reserveSegments(clustersCount);
 
-		for (int i = 0; i < vec1.length; i++) {
-			dist += Math.pow(vec1[i] - vec2[i], 2);
+		if (quantized) {
+			histogram = FeatureHistogram.of(image, maxColors);
 		}
 
-		return Math.sqrt(dist);
-	}
+		if (accelerated && histogram == null) {
+			for (Band band : bands) {
+				band.allocateBounds();
+			}
+		}
 
-	public void run() {
-		randomInit();
-		rebuildClusters();
-		generateClusters();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			if (histogram != null) {
+				generateQuantizedClusters(pool);
+				return;
+			}
+
+			if (init.equals("random")) {
+				randomInit();
+				runPass(pool, false);
+			} else if (init.equals("subsample")) {
+				long pixels = (long) image.getWidth() * image.getHeight();
+				plusPlusInit(KMeansInit.sample(image, (int) Math.min(
+						sampleSize, pixels), random));
+			} else {
+				plusPlusInit(KMeansInit.of(image));
+			}
+			generateClusters(pool);
+		} finally {
+			pool.shutdown();
+			for (Band band : bands) {
+				band.upperBounds = band.lowerBounds = null;
+			}
+			histogram = null;
+			vectorClusters = null;
+		}
 	}
 
 	// ---------- Objetos
 
-	class Cluster {
-		private List<Point> objects; /* Objetos que abrigam o ponto */
-		private int[] centroid; /* Centroide */
+	/**
+	 * Coloca cada vetor distinto de um intervalo do histograma no cluster
+	 * de centroide mais proximo.
+	 */
+	class VectorTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int from;
+		private int to;
+		private int grain;
+		private boolean changed;
 
-        Cluster() {
-			objects = new ArrayList<>();
-			centroid = null;
+		VectorTask(int from, int to, int grain) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
 		}
 
-		public void add(Point o) {
-		    // Nao se computa o centroide por questoes de performance
-			objects.add(o);
+		@Override
+		protected void compute() {
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				VectorTask first = new VectorTask(from, mid, grain);
+				VectorTask second = new VectorTask(mid, to, grain);
+				invokeAll(first, second);
+				changed = first.changed || second.changed;
+				return;
+			}
+
+			int depth = image.getDepth();
+			int[] vectors = histogram.vectors();
+			int[] feature = new int[depth];
+			for (int v = from; v < to; v++) {
+				System.arraycopy(vectors, v * depth, feature, 0, depth);
+				int bestCluster = nearestCluster(feature, centroids,
+						hasCentroid, clustersCount);
+				if (bestCluster != vectorClusters[v]) {
+					vectorClusters[v] = bestCluster;
+					changed = true;
+				}
+			}
 		}
+	}
 
-		void updateCentroid() {
-			if (objects != null && objects.size() > 0) {
-				centroid = euclideanMeanDistance(objects);
-			} else {
-				centroid = null;
+	/**
+	 * Uma passada sobre todas as faixas da imagem.
+	 */
+	class Pass extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			for (Band band : bands) {
+				band.reinitialize();
 			}
+			invokeAll(bands);
 		}
+	}
 
-		int[] getCentroid() {
-			return centroid;
+	/**
+	 * Faixa de linhas da imagem, com as somas das features e a quantidade de
+	 * pixels de cada cluster na faixa. Se <code>assigning</code> for
+	 * verdadeiro, coloca cada pixel no cluster de centroide mais proximo
+	 * antes de acumula-lo; senao, apenas acumula cada pixel no seu cluster
+	 * atual. No modo quantizado, apenas copia para cada pixel o cluster do
+	 * seu vetor no histograma.
+	 */
+	class Band extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int rowFrom;
+		private int rowTo;
+		private long[] sums = new long[clustersCount * image.getDepth()];
+		private long[] counts = new long[clustersCount];
+		private int[] feature = new int[image.getDepth()];
+		private int changes;
+
+		/* Limites de Hamerly de cada pixel da faixa, linha a linha */
+		private float[] upperBounds;
+		private float[] lowerBounds;
+
+		Band(int rowFrom, int rowTo) {
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
 		}
 
-		List<Point> getObjects() {
-			return objects;
+		void allocateBounds() {
+			int pixels = arrayLength((long) (rowTo - rowFrom)
+					* image.getWidth(), "os limites de Hamerly de uma faixa");
+			upperBounds = new float[pixels];
+			lowerBounds = new float[pixels];
+			Arrays.fill(upperBounds, Float.POSITIVE_INFINITY);
 		}
 
-		int[] euclideanMeanDistance(List<Point> points) {
+		@Override
+		protected void compute() {
+			int depth = feature.length;
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			changes = 0;
+
+			if (histogram != null) {
+				computeFromHistogram();
+				return;
+			}
+
+			if (accelerated && assigning) {
+				computeAccelerated();
+				return;
+			}
+
+			for (int i = rowFrom; i < rowTo; i++) {
+				for (int j = 0; j < image.getWidth(); j++) {
+					image.getFeature(i, j, feature);
+					int cluster = image.getSegment(i, j);
+
+					if (assigning) {
+						int bestCluster = nearestCluster(feature, centroids,
+								hasCentroid, clustersCount);
 
-			int[] info = new int[KMeans.this.image.getDepth()];
-			int[] output = new int[info.length];
+						// Verifica se e necessario colocar o objeto em um novo cluster
+						if (bestCluster != cluster) {
+							changes++;
+							image.setSegment(i, j, bestCluster);
+							cluster = bestCluster;
+						}
+					}
 
-			for (Point p : points) {
-				int[] data = KMeans.this.image.getData()[p.y][p.x];
-				for (int i = 0; i < data.length; i++) {
-					info[i] += data[i];
+					int base = cluster * depth;
+					for (int k = 0; k < depth; k++) {
+						sums[base + k] += feature[k];
+					}
+					counts[cluster]++;
 				}
 			}
+		}
 
-			for (int i = 0; i < info.length; i++) {
-				output[i] = (info[i] / points.size());
+		private void computeFromHistogram() {
+			for (int i = rowFrom; i < rowTo; i++) {
+				for (int j = 0; j < image.getWidth(); j++) {
+					image.getFeature(i, j, feature);
+					image.setSegment(i, j,
+							vectorClusters[histogram.indexOf(feature)]);
+				}
 			}
+		}
+
+		/**
+		 * Atribuicao com os limites de Hamerly. Acumula apenas as diferencas
+		 * causadas pelos pixels que mudam de cluster.
+		 */
+		private void computeAccelerated() {
+			int depth = feature.length;
+			int width = image.getWidth();
+
+			for (int i = rowFrom; i < rowTo; i++) {
+				for (int j = 0, p = (i - rowFrom) * width; j < width; j++, p++) {
+					int cluster = image.getSegment(i, j);
+
+					if (cluster >= 0) {
+						// Em double e arredondados para fora, para que o erro
+						// nao se acumule entre as iteracoes puladas
+						double drift = drifts[cluster];
+						if (drift != 0) {
+							upperBounds[p] = Math.nextUp((float) (upperBounds[p] + drift));
+						}
+						drift = cluster == maxDriftCluster ? secondMaxDrift
+								: maxDrift;
+						if (drift != 0) {
+							lowerBounds[p] = Math.nextDown((float) (lowerBounds[p] - drift));
+						}
 
-			return output;
+						double bound = Math.max(halfDistances[cluster],
+								lowerBounds[p]);
+						if (upperBounds[p] < bound) {
+							continue;
+						}
+
+						// Com empate o pixel e reavaliado, como no metodo comum.
+						// Ajusta o limite superior e tenta de novo
+						image.getFeature(i, j, feature);
+						upperBounds[p] = Math.nextUp((float) Math.sqrt(squaredDistance(
+								feature, 0, centroids, cluster * depth, depth)));
+						if (upperBounds[p] < bound) {
+							continue;
+						}
+					} else {
+						image.getFeature(i, j, feature);
+					}
+
+					// Busca os dois centroides mais proximos
+					int bestCluster = -1;
+					long best = Long.MAX_VALUE;
+					long second = Long.MAX_VALUE;
+					for (int m = 0; m < clustersCount; m++) {
+						if (!hasCentroid[m]) {
+							continue;
+						}
+						long d = squaredDistance(feature, 0, centroids, m
+								* depth, depth);
+						if (d < best) {
+							second = best;
+							best = d;
+							bestCluster = m;
+						} else if (d < second) {
+							second = d;
+						}
+					}
+					// Arredondados para fora, para que continuem sendo limites
+					upperBounds[p] = Math.nextUp((float) Math.sqrt(best));
+					lowerBounds[p] = second == Long.MAX_VALUE ? Float.POSITIVE_INFINITY
+							: Math.nextDown((float) Math.sqrt(second));
+
+					// Verifica se e necessario colocar o objeto em um novo cluster
+					if (bestCluster != cluster) {
+						changes++;
+						image.setSegment(i, j, bestCluster);
+						int base = bestCluster * depth;
+						for (int k = 0; k < depth; k++) {
+							sums[base + k] += feature[k];
+						}
+						counts[bestCluster]++;
+						if (cluster >= 0) {
+							base = cluster * depth;
+							for (int k = 0; k < depth; k++) {
+								sums[base + k] -= feature[k];
+							}
+							counts[cluster]--;
+						}
+					}
+				}
+			}
 		}
 	}
 }
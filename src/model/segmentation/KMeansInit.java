@@ -0,0 +1,190 @@
+package model.segmentation;
+
+import java.util.Random;
+
+import model.FeatureMatrix;
+
+/**
+ * Inicializacao dos centroides para as variantes de K-means.
+ */
+final class KMeansInit {
+
+	private KMeansInit() {
+	}
+
+	/**
+	 * Conjunto de vetores, possivelmente com pesos, sobre o qual se escolhem
+	 * os centroides.
+	 */
+	interface Points {
+
+		int size();
+
+		int depth();
+
+		void get(int index, int[] feature);
+
+		long weight(int index);
+	}
+
+	/**
+	 * @return Todos os pixels da imagem, com peso 1.
+	 */
+	static Points of(final FeatureMatrix image) {
+		final int size = SegmentationAlgorithm.arrayLength((long) image
+				.getWidth() * image.getHeight(),
+				"o k-means++ sobre todos os pixels (use init=subsample)");
+		return new Points() {
+
+			public int size() {
+				return size;
+			}
+
+			public int depth() {
+				return image.getDepth();
+			}
+
+			public void get(int index, int[] feature) {
+				image.getFeature(index / image.getWidth(), index
+						% image.getWidth(), feature);
+			}
+
+			public long weight(int index) {
+				return 1;
+			}
+		};
+	}
+
+	/**
+	 * @param vectors Vetores, um apos o outro.
+	 * @param weights Peso de cada vetor, ou <code>null</code> para peso 1.
+	 * @param count Quantidade de vetores.
+	 * @param depth Dimensao dos vetores.
+	 */
+	static Points of(final int[] vectors, final long[] weights,
+			final int count, final int depth) {
+		return new Points() {
+
+			public int size() {
+				return count;
+			}
+
+			public int depth() {
+				return depth;
+			}
+
+			public void get(int index, int[] feature) {
+				System.arraycopy(vectors, index * depth, feature, 0, depth);
+			}
+
+			public long weight(int index) {
+				return weights == null ? 1 : weights[index];
+			}
+		};
+	}
+
+	/**
+	 * Sorteia <code>size</code> pixels da imagem, com reposicao.
+	 */
+	static Points sample(FeatureMatrix image, int size, Random random) {
+		int depth = image.getDepth();
+		int[] vectors = new int[size * depth];
+		int[] feature = new int[depth];
+		for (int n = 0; n < size; n++) {
+			image.getFeature(random.nextInt(image.getHeight()),
+					random.nextInt(image.getWidth()), feature);
+			System.arraycopy(feature, 0, vectors, n * depth, depth);
+		}
+		return of(vectors, null, size, depth);
+	}
+
+	/**
+	 * Escolhe os centroides com k-means++: o primeiro ao acaso e cada um dos
+	 * seguintes com probabilidade proporcional ao peso vezes o quadrado da
+	 * distancia ao centroide mais proximo ja escolhido. Se os vetores
+	 * distintos forem menos que <code>k</code>, escolhe menos centroides.
+	 *
+	 * @param points Vetores candidatos.
+	 * @param k Quantidade de centroides desejada.
+	 * @param random Gerador de numeros aleatorios.
+	 * @param centroids Vetor onde deixar os centroides, um apos o outro.
+	 * @return Quantidade de centroides escolhidos.
+	 */
+	static int plusPlus(Points points, int k, Random random, int[] centroids) {
+		int n = points.size();
+		int depth = points.depth();
+		if (n == 0 || k == 0) {
+			return 0;
+		}
+
+		int[] feature = new int[depth];
+		float[] distances = new float[n];
+		double total = 0;
+
+		int chosen = pickByWeight(points, random);
+		points.get(chosen, feature);
+		System.arraycopy(feature, 0, centroids, 0, depth);
+
+		for (int p = 0; p < n; p++) {
+			points.get(p, feature);
+			distances[p] = distance(feature, centroids, 0);
+			total += (double) distances[p] * points.weight(p);
+		}
+
+		int count = 1;
+		while (count < k && total > 0) {
+			double r = random.nextDouble() * total;
+			for (int p = 0; p < n; p++) {
+				double w = (double) distances[p] * points.weight(p);
+				if (w > 0) {
+					// Por arredondamento r pode nao chegar a zero
+					chosen = p;
+					r -= w;
+					if (r < 0) {
+						break;
+					}
+				}
+			}
+
+			int base = count * depth;
+			points.get(chosen, feature);
+			System.arraycopy(feature, 0, centroids, base, depth);
+			count++;
+
+			total = 0;
+			for (int p = 0; p < n; p++) {
+				points.get(p, feature);
+				float d = distance(feature, centroids, base);
+				if (d < distances[p]) {
+					distances[p] = d;
+				}
+				total += (double) distances[p] * points.weight(p);
+			}
+		}
+		return count;
+	}
+
+	private static int pickByWeight(Points points, Random random) {
+		double total = 0;
+		for (int p = 0; p < points.size(); p++) {
+			total += points.weight(p);
+		}
+		double r = random.nextDouble() * total;
+		for (int p = 0; p < points.size(); p++) {
+			r -= points.weight(p);
+			if (r < 0) {
+				return p;
+			}
+		}
+		return points.size() - 1;
+	}
+
+	private static float distance(int[] feature, int[] centroids, int base) {
+		long distance = 0;
+		for (int i = 0; i < feature.length; i++) {
+			long d = feature[i] - centroids[base + i];
+			distance += d * d;
+		}
+		return distance;
+	}
+}
@@ -0,0 +1,314 @@
+package model.segmentation;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import model.FeatureMatrix;
+import model.SegmentationObserver;
+import model.converters.FeatureBlock;
+import model.converters.FeatureStream;
+import model.converters.ImageConverter;
+
+/**
+ * Metodo K-means por mini-batches para segmentacao de imagens grandes.
+ * <p>
+ * Em vez de percorrer a imagem inteira a cada iteracao, cada iteracao
+ * sorteia "batchSize" pixels e move os centroides na direcao deles, com uma
+ * taxa de aprendizado que diminui com a quantidade de pixels que cada
+ * cluster ja recebeu. Depois de "iterations" iteracoes, faz uma unica
+ * passada completa para atribuir cada pixel ao centroide mais proximo.
+ * <p>
+ * Depois do primeiro batch, a imagem e rotulada por blocos de
+ * "previewStep" pixels, de modo que o observador recebe uma segmentacao
+ * aproximada quase imediatamente; cada batch seguinte rotula os pixels
+ * sorteados.
+ * <p>
+ * Com <code>setConverter</code>, as features nao precisam estar guardadas
+ * na matriz (ver <code>ImageConverter.createSegmentMatrix</code>): os pixels
+ * sorteados sao calculados pelo converter, e a passada final le os blocos
+ * do <code>stream</code> do converter, calculados em outro thread com uma
+ * janela de "streamWindow" blocos enquanto os anteriores sao rotulados.
+ */
+public class MiniBatchKMeans extends SegmentationAlgorithm {
+
+	/* Linhas de cada bloco lido do converter na passada final */
+	private static final int STREAM_ROWS = 16;
+
+	private FeatureMatrix image;
+	private SegmentationObserver observer;
+	private int clustersCount = 10;
+	private int batchSize = 1024;
+	private int iterations = 100;
+	private int sampleSize = 10000;
+	private int previewStep = 8;
+	private int streamWindow = 4;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private Random random = new Random();
+	private ImageConverter converter;
+
+	/* Centroides, um apos o outro, e se cada cluster tem centroide */
+	private double[] centers;
+	private int[] centroids;
+	private boolean[] hasCentroid;
+	private long[] counts;
+
+	public void process(FeatureMatrix image, SegmentationObserver observer, HashMap<String, String> params) {
+		this.image = image;
+		this.observer = observer;
+
+		String s = params.get("clustersCount");
+		if (s != null) {
+			clustersCount = Integer.parseInt(s);
+		}
+
+		s = params.get("batchSize");
+		if (s != null) {
+			batchSize = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("iterations");
+		if (s != null) {
+			iterations = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("sampleSize");
+		if (s != null) {
+			sampleSize = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("previewStep");
+		if (s != null) {
+			previewStep = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("streamWindow");
+		if (s != null) {
+			streamWindow = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("parallelism");
+		if (s != null) {
+			parallelism = Math.max(1, Integer.parseInt(s));
+		}
+
+		s = params.get("seed");
+		if (s != null) {
+			random = new Random(Long.parseLong(s));
+		}
+
+		int depth = image.getDepth();
+		this.centers = new double[clustersCount * depth];
+		this.centroids = new int[clustersCount * depth];
+		this.hasCentroid = new boolean[clustersCount];
+		this.counts = new long[clustersCount];
+	}
+
+	/**
+	 * Faz as features serem calculadas por <code>converter</code> em vez de
+	 * lidas da matriz. Deve ser chamado antes de <code>start</code>, e a
+	 * matriz deve ter as dimensoes da imagem do converter.
+	 */
+	public void setConverter(ImageConverter converter) {
+		this.converter = converter;
+	}
+
+	public void run() {
+		image.reserveSegments(clustersCount);
+
+		int depth = image.getDepth();
+		long pixels = (long) image.getWidth() * image.getHeight();
+		int count = KMeansInit.plusPlus(sample((int) Math.min(sampleSize,
+				pixels)), clustersCount, random, centroids);
+		for (int k = 0; k < clustersCount; k++) {
+			hasCentroid[k] = k < count;
+		}
+		for (int i = 0; i < centers.length; i++) {
+			centers[i] = centroids[i];
+		}
+
+		int[] batchRows = new int[batchSize];
+		int[] batchColumns = new int[batchSize];
+		int[] batchClusters = new int[batchSize];
+		int[] batchFeatures = new int[arrayLength((long) batchSize * depth,
+				"as features do batch")];
+		int[] feature = new int[depth];
+
+		for (int t = 0; t < iterations; t++) {
+			if (isInterrupted()) {
+				break;
+			}
+
+			// Sorteia o batch e busca o cluster mais proximo de cada pixel
+			for (int b = 0; b < batchSize; b++) {
+				batchRows[b] = random.nextInt(image.getHeight());
+				batchColumns[b] = random.nextInt(image.getWidth());
+				getFeature(batchRows[b], batchColumns[b], feature);
+				System.arraycopy(feature, 0, batchFeatures, b * depth, depth);
+				batchClusters[b] = KMeans.nearestCluster(feature, centroids,
+						hasCentroid, clustersCount);
+			}
+
+			// Move cada centroide na direcao dos seus pixels
+			for (int b = 0; b < batchSize; b++) {
+				int k = batchClusters[b];
+				double eta = 1.0 / ++counts[k];
+				int base = k * depth;
+				for (int i = 0, f = b * depth; i < depth; i++) {
+					centers[base + i] += eta
+							* (batchFeatures[f + i] - centers[base + i]);
+				}
+			}
+			for (int i = 0; i < centers.length; i++) {
+				centroids[i] = (int) Math.round(centers[i]);
+			}
+
+			if (t == 0) {
+				labelPreview(feature);
+			} else {
+				for (int b = 0; b < batchSize; b++) {
+					image.setSegment(batchRows[b], batchColumns[b],
+							batchClusters[b]);
+				}
+			}
+
+			if (observer != null) {
+				observer.onChange();
+			}
+		}
+
+		// Passada final sobre todos os pixels
+		if (!isInterrupted() && converter != null) {
+			labelStream(feature);
+			if (observer != null) {
+				observer.onChange();
+			}
+		} else if (!isInterrupted()) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new LabelTask(0, image.getHeight(), Math.max(1,
+						image.getHeight() / (parallelism * 4))));
+			} finally {
+				pool.shutdown();
+			}
+			if (observer != null) {
+				observer.onChange();
+			}
+		}
+
+		if (observer != null) {
+			observer.onComplete();
+		}
+	}
+
+	/**
+	 * Sorteia <code>size</code> pixels da imagem, com reposicao, na mesma
+	 * ordem que <code>KMeansInit.sample</code>.
+	 */
+	private KMeansInit.Points sample(int size) {
+		int depth = image.getDepth();
+		int[] vectors = new int[size * depth];
+		int[] feature = new int[depth];
+		for (int n = 0; n < size; n++) {
+			int i = random.nextInt(image.getHeight());
+			getFeature(i, random.nextInt(image.getWidth()), feature);
+			System.arraycopy(feature, 0, vectors, n * depth, depth);
+		}
+		return KMeansInit.of(vectors, null, size, depth);
+	}
+
+	private void getFeature(int i, int j, int[] feature) {
+		if (converter != null) {
+			converter.computeFeature(i, j, feature);
+		} else {
+			image.getFeature(i, j, feature);
+		}
+	}
+
+	/**
+	 * Rotula todos os pixels lendo os blocos do <code>stream</code> do
+	 * converter, que sao calculados em outro thread enquanto este rotula os
+	 * anteriores. Para de ler se o algoritmo for interrompido.
+	 */
+	private void labelStream(int[] feature) {
+		FeatureStream blocks = new FeatureStream(converter
+				.stream(STREAM_ROWS), streamWindow);
+		try {
+			while (!isInterrupted() && blocks.hasNext()) {
+				FeatureBlock block = blocks.next();
+				int rowTo = block.getRowFrom() + block.getRowCount();
+				for (int i = block.getRowFrom(); i < rowTo; i++) {
+					for (int j = 0; j < block.getWidth(); j++) {
+						block.getFeature(i, j, feature);
+						image.setSegment(i, j, KMeans.nearestCluster(feature,
+								centroids, hasCentroid, clustersCount));
+					}
+				}
+			}
+		} finally {
+			blocks.close();
+		}
+	}
+
+	/**
+	 * Rotula cada bloco de <code>previewStep</code> x
+	 * <code>previewStep</code> pixels com o cluster do seu primeiro pixel.
+	 */
+	private void labelPreview(int[] feature) {
+		for (int i = 0; i < image.getHeight(); i += previewStep) {
+			for (int j = 0; j < image.getWidth(); j += previewStep) {
+				getFeature(i, j, feature);
+				int k = KMeans.nearestCluster(feature, centroids, hasCentroid,
+						clustersCount);
+				int rowTo = Math.min(i + previewStep, image.getHeight());
+				int columnTo = Math.min(j + previewStep, image.getWidth());
+				for (int y = i; y < rowTo; y++) {
+					for (int x = j; x < columnTo; x++) {
+						image.setSegment(y, x, k);
+					}
+				}
+			}
+		}
+	}
+
+	// ---------- Objetos
+
+	/**
+	 * Coloca cada pixel das linhas de <code>rowFrom</code> a
+	 * <code>rowTo</code> no cluster de centroide mais proximo.
+	 */
+	class LabelTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int rowFrom;
+		private int rowTo;
+		private int bandHeight;
+
+		LabelTask(int rowFrom, int rowTo, int bandHeight) {
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.bandHeight = bandHeight;
+		}
+
+		@Override
+		protected void compute() {
+			if (rowTo - rowFrom > bandHeight) {
+				int rowMid = (rowFrom + rowTo) >>> 1;
+				invokeAll(new LabelTask(rowFrom, rowMid, bandHeight),
+						new LabelTask(rowMid, rowTo, bandHeight));
+				return;
+			}
+
+			int[] feature = new int[image.getDepth()];
+			for (int i = rowFrom; i < rowTo; i++) {
+				for (int j = 0; j < image.getWidth(); j++) {
+					image.getFeature(i, j, feature);
+					image.setSegment(i, j, KMeans.nearestCluster(feature,
+							centroids, hasCentroid, clustersCount));
+				}
+			}
+		}
+	}
+}
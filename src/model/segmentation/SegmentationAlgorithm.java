@@ -10,6 +10,9 @@ import java.util.HashMap;
  */
 public abstract class SegmentationAlgorithm extends Thread {
 
+	/* Maior tamanho de vetor que as JVMs costumam aceitar */
+	static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
 	/**
 	 * Estabelece os parametros para ser usados na segmentacao
 	 *
@@ -18,4 +21,22 @@ public abstract class SegmentationAlgorithm extends Thread {
 	 * @param params Parametros para a segmentacao.
 	 */
 	public abstract void process(FeatureMatrix image, SegmentationObserver observer, HashMap<String, String> params);
+
+	/**
+	 * Verifica que um vetor de trabalho com <code>length</code> posicoes
+	 * pode ser alocado. O tamanho deve ser calculado em <code>long</code>,
+	 * ja que o produto das dimensoes da imagem pode passar de um int.
+	 *
+	 * @param length Quantidade de posicoes.
+	 * @param what Descricao do vetor, para a mensagem de erro.
+	 * @return <code>length</code> como int.
+	 * @throws IllegalStateException se o vetor nao cabe em um vetor Java.
+	 */
+	static int arrayLength(long length, String what) {
+		if (length > MAX_ARRAY_LENGTH) {
+			throw new IllegalStateException("Imagem grande demais: " + what
+					+ " precisaria de " + length + " posicoes");
+		}
+		return (int) length;
+	}
 }
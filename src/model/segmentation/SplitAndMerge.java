@@ -1,12 +1,65 @@
 package model.segmentation;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import model.FeatureMatrix;
 import model.SegmentationObserver;
 
 /**
  * Metodo split and merge para segmentacao.
+ * <p>
+ * No inicio da execucao sao montadas, para cada feature, imagens integrais
+ * da soma e da soma dos quadrados dos valores, de modo que a media e o
+ * desvio padrao de qualquer zona retangular sao calculados em tempo
+ * constante, sem percorrer os seus pixels.
+ * <p>
+ * O split e feito por niveis sobre uma quadtree linear (ver
+ * {@link Quadtree}): cada nivel e um vetor de retangulos, e apenas as folhas
+ * sao guardadas, identificadas pelo codigo de Morton da sua posicao. Os
+ * vizinhos de cada folha sao encontrados por busca binaria nesses codigos,
+ * sem guardar conjuntos de vizinhos.
+ * <p>
+ * As imagens integrais, as decisoes de divisao de cada nivel e a pintura
+ * final dos segmentos sao feitas em paralelo sobre um
+ * <code>ForkJoinPool</code>, ja que os nos de um nivel nao dependem uns dos
+ * outros; os vizinhos so sao ligados depois do split. O parametro
+ * "parallelism" define a quantidade de threads (por padrao, a quantidade de
+ * processadores).
+ * <p>
+ * Com o parametro "tileSize", a imagem e dividida em ladrilhos quadrados
+ * desse tamanho, e cada ladrilho passa pelo split e pelo merge por conta
+ * propria, em paralelo, com imagens integrais e grafo proprios; a memoria
+ * de trabalho de cada thread fica limitada ao tamanho do ladrilho. As
+ * regioes de cada ladrilho sao gravadas na imagem assim que ele termina,
+ * numeradas dentro do ladrilho; o indice global de cada uma so e fixado
+ * depois, na ordem dos ladrilhos, de modo que o resultado nao depende da
+ * ordem em que as threads terminam.
+ * Se "tileSize" nao for indicado e as imagens integrais ou o grafo da
+ * imagem inteira nao couberem no heap livre, a execucao falha com
+ * <code>IllegalStateException</code>; com o parametro "autoTile" ativo, em
+ * vez disso, os ladrilhos sao usados com um tamanho escolhido para que os
+ * de todas as threads caibam. Como o split e o merge de cada ladrilho sao
+ * independentes, a segmentacao pode ser diferente da da imagem inteira.
+ * Depois, um merge de costura une as regioes de todos os ladrilhos, a
+ * partir das estatisticas de cada regiao e das arestas ao longo das bordas
+ * entre ladrilhos, e os segmentos sao renumerados numa passada final.
+ * <p>
+ * Na fase de merge, as folhas resultantes do split formam um grafo de
+ * adjacencia de regioes guardado em vetores de tipos primitivos (ver
+ * {@link RegionGraph}). Cada regiao guarda a quantidade de pixels e a soma e
+ * a soma dos quadrados de cada feature. Ao unir duas regioes, esses
+ * acumuladores sao somados, e o desvio padrao da uniao e calculado a partir
+ * deles, sem percorrer os pixels das regioes.
+ * <p>
+ * As unioes sao feitas em ordem de custo: cada regiao coloca em uma fila de
+ * prioridade o seu melhor vizinho homogeneo, com o desvio padrao da uniao
+ * como custo, e a cada passo une-se o par de menor custo. Depois de uma
+ * uniao, apenas a regiao resultante busca de novo o seu melhor vizinho. Os
+ * pares antigos ficam na fila e, quando saem dela, sao descartados ou
+ * recalculados, comparando a versao de cada regiao. Os segmentos so sao
+ * pintados na imagem no final, numa unica passada sobre as zonas.
  */
 public class SplitAndMerge extends SegmentationAlgorithm {
 
@@ -16,6 +69,24 @@ public class SplitAndMerge extends SegmentationAlgorithm {
 	private double splitStandardDeviation = 5;
 	private double mergeStandardDeviation = 10;
 	private int minSize = 3;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/* Quantidade de nos ou folhas abaixo da qual uma tarefa nao se divide */
+	private static final int GRAIN = 256;
+
+	/* Menor ladrilho escolhido quando a imagem nao cabe no heap */
+	private static final int MIN_TILE_SIZE = 64;
+
+	private int tileSize = 0;
+	private boolean autoTile = false;
+
+	private ForkJoinPool pool;
+
+	/* Modo em ladrilhos: ladrilhos por linha, grafo compacto de cada
+	 * ladrilho e indice global da sua primeira regiao */
+	private int tileColumns;
+	private RegionGraph[] tileGraphs;
+	private int[] tileBases;
 
 	public void process(FeatureMatrix image, SegmentationObserver observer, HashMap<String, String> params) {
 		this.image = image;
@@ -37,506 +108,1236 @@ public class SplitAndMerge extends SegmentationAlgorithm {
 		if (s != null) {
 			minSize = Integer.parseInt(s);
 		}
+		s = params.get("parallelism");
+		if (s != null) {
+			parallelism = Math.max(1, Integer.parseInt(s));
+		}
+		s = params.get("tileSize");
+		if (s != null) {
+			tileSize = Math.max(0, Integer.parseInt(s));
+		}
+		s = params.get("autoTile");
+		if (s != null) {
+			autoTile = Integer.parseInt(s) != 0;
+		}
 
 		System.out.println("Executando split and merge " + splitStandardDeviation + " " + mergeStandardDeviation + " " + minSize);
 	}
 
+	public void run() {
+		checkWorkingSet();
+
+		pool = new ForkJoinPool(parallelism);
+		try {
+			if (tileSize > 0
+					&& (tileSize < image.getWidth() || tileSize < image
+							.getHeight())) {
+				splitAndMergeTiles();
+			} else {
+				splitAndMerge();
+			}
+		} finally {
+			pool.shutdown();
+			pool = null;
+			tileGraphs = null;
+			tileBases = null;
+		}
+	}
+
 	/**
-	 * Dada uma lista de segmentos, os ordena de menor para maior (tamanho), elimina os que contenham zonas (segmentos vazios)
-	 * e redistribui os numeros de segmento desde 1
+	 * Verifica que as imagens integrais cabem no heap livre: as da imagem
+	 * inteira, ou as de um ladrilho por thread no modo em ladrilhos. Se a imagem
+	 * inteira nao cabe, "tileSize" nao foi indicado e "autoTile" esta ativo,
+	 * escolhe um tamanho de ladrilho.
 	 *
-	 * @param segments
-	 *            Lista de segmentos a processar.
+	 * @throws IllegalStateException se o que sera processado nao cabe.
 	 */
-	private void sortAndRemoveEmpty(ArrayList<ImageSegment> segments) {
-
-		List<ImageSegment> auxList = new ArrayList<>();
-		for (ImageSegment s : segments) {
-			if (s.size() != 0) {
-				auxList.add(s);
+	private void checkWorkingSet() {
+		long heap = freeHeap();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long cells = (long) (width + 1) * (height + 1);
+		if (tileSize == 0 || (tileSize >= width && tileSize >= height)) {
+			// Com observador, o split pinta ate um segmento por folha, o que
+			// pode levar os segmentos a ints, copiando os anteriores
+			long segmentBytes = 6L * width * height;
+			if (cells <= MAX_ARRAY_LENGTH
+					&& integralBytes(width, height) + segmentBytes <= heap) {
+				return;
 			}
+			if (tileSize != 0) {
+				throw new IllegalStateException("Imagem grande demais para "
+						+ "as imagens integrais em memoria: indique um "
+						+ "tileSize menor que a imagem");
+			}
+
+			chooseTileSize(heap, "Imagens integrais grandes demais para o "
+					+ "heap");
+			return;
 		}
 
-		ImageSegment[] segmentsArray = new ImageSegment[auxList.size()];
-		Arrays.sort(auxList.toArray(segmentsArray),
-				Comparator.comparingInt(ImageSegment::size));
+		// Ladrilhos processados ao mesmo tempo
+		long tiles = Math.min(parallelism, (long) ((width + tileSize - 1)
+				/ tileSize) * ((height + tileSize - 1) / tileSize));
+		if ((tileSize + 1L) * (tileSize + 1L) > MAX_ARRAY_LENGTH
+				|| tiles * (integralBytes(tileSize, tileSize) + 4L * tileSize
+						* tileSize) > heap) {
+			throw new IllegalStateException("Memoria insuficiente para "
+					+ "ladrilhos de " + tileSize + ": indique um tileSize "
+					+ "menor");
+		}
+	}
 
-        /*Arrays.sort(auxList.toArray(segmentsArray),
-        new Comparator<ImageSegment>() {
-            public int compare(ImageSegment arg0, ImageSegment arg1) {
-                return arg0.size() - arg1.size();
-            }
-        });*/
+	/**
+	 * Escolhe o maior ladrilho tal que as imagens integrais e os segmentos
+	 * dos ladrilhos de todas as threads ocupem metade de <code>heap</code>.
+	 *
+	 * @param reason O que nao coube, para a mensagem de erro.
+	 * @throws IllegalStateException se "autoTile" nao esta ativo ou se o
+	 * 		ladrilho ficaria menor que <code>MIN_TILE_SIZE</code>.
+	 */
+	private void chooseTileSize(long heap, String reason) {
+		if (!autoTile) {
+			throw new IllegalStateException(reason + ": indique um tileSize "
+					+ "ou use autoTile=1");
+		}
 
-		segments.clear();
-		int index = 1;
-		for (ImageSegment s : segmentsArray) {
-			segments.add(s);
-			s.segmentIndex = index++;
+		long bytesPerCell = 16L * image.getDepth() + 4;
+		double side = Math.min(Math.sqrt(heap / 2.0 / parallelism
+				/ bytesPerCell), Math.sqrt(MAX_ARRAY_LENGTH));
+		tileSize = (int) Math.min(side - 1, Math.max(image.getWidth(), image
+				.getHeight()) - 1);
+		if (tileSize < MIN_TILE_SIZE) {
+			throw new IllegalStateException("Memoria insuficiente para o "
+					+ "split and merge: nem ladrilhos de " + MIN_TILE_SIZE
+					+ " pixels cabem no heap");
 		}
 	}
 
-	public void run() {
-		Set<ImageZone> zones = new HashSet<>();
-		int currentSegmentIndex = 1;
-		boolean changed = true;
-
-		zones.add(new ImageZone(0, image.getWidth(), 0, image.getHeight(),
-				currentSegmentIndex));
+	/**
+	 * @return Bytes do heap que ainda podem ser alocados, com uma margem
+	 * 		para a fragmentacao causada pelos vetores grandes.
+	 */
+	private static long freeHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return (runtime.maxMemory() - (runtime.totalMemory() - runtime
+				.freeMemory())) / 4 * 3;
+	}
 
-		/* SPLIT */
-		while (changed) {
-			if (Thread.interrupted())
-				return;
-			Set<ImageZone> auxZones = new HashSet<>();
+	/**
+	 * @return Bytes aproximados do grafo de <code>regions</code> regioes:
+	 * 		os vetores de cada regiao, as arestas depois de crescerem e um
+	 * 		par na fila de prioridade.
+	 */
+	private long graphBytes(int regions) {
+		return (160L + 16L * image.getDepth()) * regions;
+	}
 
-			changed = false;
+	/**
+	 * @return Bytes ocupados pelas imagens integrais de um retangulo.
+	 */
+	private long integralBytes(long width, long height) {
+		return 16L * image.getDepth() * (width + 1) * (height + 1);
+	}
 
-			for (ImageZone zone : zones) {
+	private void splitAndMerge() {
 
-				// Pinta os segmentos na imagem
-				for (int i = zone.yFrom; i < zone.yTo; i++) {
-					for (int j = zone.xFrom; j < zone.xTo; j++) {
-						image.getSegment()[i][j] = (byte) zone.segment.segmentIndex;
-					}
-				}
-
-				// Determina se o segmento deve ser dividido ou nao
-				if (zone.isHomogeneus() || zone.size() <= minSize
-						|| zone.xTo - zone.xFrom == 1
-						|| zone.yTo - zone.yFrom == 1) {
+		/* SPLIT */
+		Tile tile = new Tile(0, 0, image.getWidth(), image.getHeight(), false);
+		Quadtree tree = tile.split();
+		if (tree == null)
+			return;
+
+		// O grafo e montado com as imagens integrais ainda em memoria; se
+		// nao cabe, recomeca em ladrilhos se "autoTile" esta ativo
+		if (tileSize == 0 && graphBytes(tree.size()) > freeHeap()) {
+			tile.sums = tile.squares = null;
+			tree = null;
+			chooseTileSize(freeHeap(), "Grafo de regioes grande demais para "
+					+ "o heap");
+			splitAndMergeTiles();
+			return;
+		}
 
-					// Nao divide
-					auxZones.add(zone);
-				} else {
+		/* COSMOVISION */
+		RegionGraph graph = tile.buildGraph(tree);
+		if (graph == null)
+			return;
 
-					// Divide
-					changed = true;
-					auxZones.addAll(Arrays.asList(zone.divide(currentSegmentIndex)));
-					currentSegmentIndex += 4;
-				}
-			}
+		/* MERGE */
+		if (!graph.mergeAll())
+			return;
+		tile.paintLeaves(tree, graph, new int[tree.size()]);
 
+		if (observer != null) {
 			observer.onChange();
-			zones = auxZones;
+			observer.onComplete();
 		}
+	}
 
-		/* COSMOVISION */
-		ArrayList<ImageSegment> segments = new ArrayList<>();
-		for (ImageZone zone : zones) {
-			if (Thread.interrupted())
-				return;
-
-			ImageSegment currentSegment = zone.segment;
-
-			Set<ImageZone> neighbourZones = new HashSet<>();
-			neighbourZones.addAll(zone.north);
-			neighbourZones.addAll(zone.south);
-			neighbourZones.addAll(zone.east);
-			neighbourZones.addAll(zone.west);
+	private void splitAndMergeTiles() {
+		tileColumns = (image.getWidth() + tileSize - 1) / tileSize;
+		int rows = (image.getHeight() + tileSize - 1) / tileSize;
+		tileGraphs = new RegionGraph[tileColumns * rows];
+		tileBases = new int[tileColumns * rows];
+
+		/* SPLIT E MERGE DE CADA LADRILHO */
+		pool.invoke(new TileTask(0, tileColumns * rows));
+		if (isInterrupted())
+			return;
+
+		// Numera as regioes de todos os ladrilhos na ordem dos ladrilhos
+		long total = 0;
+		for (int t = 0; t < tileGraphs.length; t++) {
+			tileBases[t] = (int) total;
+			total += tileGraphs[t].size();
+		}
+		int regionCount = arrayLength(total, "o grafo de costura");
 
-			for (ImageZone z : neighbourZones) {
-				if (z.segment != currentSegment) {
-					currentSegment.neighbours.add(z.segment);
-				}
+		/* MERGE DE COSTURA */
+		RegionGraph graph = new RegionGraph(regionCount);
+		for (int t = 0; t < tileGraphs.length; t++) {
+			graph.add(tileGraphs[t], tileBases[t]);
+			tileGraphs[t] = null;
+		}
+		addSeamEdges(graph);
+		if (!graph.mergeAll())
+			return;
+
+		// Numera as regioes desde 1 e renumera os segmentos da imagem
+		int[] labels = new int[regionCount];
+		int[] segments = new int[regionCount];
+		int labelCount = 0;
+		for (int r = 0; r < regionCount; r++) {
+			int root = graph.find(r);
+			if (labels[root] == 0) {
+				labels[root] = ++labelCount;
 			}
-			segments.add(currentSegment);
+			segments[r] = labels[root];
 		}
+		image.reserveSegments(labelCount + 1);
+		pool.invoke(new RelabelTask(segments, 0, image.getHeight(), Math.max(
+				1, image.getHeight() / (parallelism * 4))));
 
-		/* MERGE */
-		changed = true;
-		while (changed) {
-			if (Thread.interrupted())
-				return;
-			changed = false;
-
-			// Elimina os segmentos que nao possuam zonas e ordena a lista de menor para maior (tamanho)
-			sortAndRemoveEmpty(segments);
-
-			// Itera sobre os segmentos e busca se pode juntar com alguem com algum vizinho
-			for (ImageSegment segment : segments) {
+		if (observer != null) {
+			observer.onChange();
+			observer.onComplete();
+		}
+	}
 
-				// Verifica se as areas permanecem sem qualquer salto
-				if (segment.zones.size() == 0)
-					continue;
+	/**
+	 * Grava na imagem os segmentos de um ladrilho terminado, numerados
+	 * dentro do ladrilho, e guarda o seu grafo compacto.
+	 */
+	private synchronized void addTile(int index, Tile tile, RegionGraph graph) {
+		image.reserveSegments(graph.size() + 1);
 
-				// Busca o melhor vizinho homogeneo
-				ImageSegment bestNeighbour = segment
-						.getBestHomogeneousNeighbour();
+		for (int i = 0; i < tile.height; i++) {
+			for (int j = 0; j < tile.width; j++) {
+				image.setSegment(tile.yFrom + i, tile.xFrom + j,
+						tile.segments[i * tile.width + j]);
+			}
+		}
+		tileGraphs[index] = graph;
 
-				// Se encontrado, me uno a ele
-				if (bestNeighbour != null) {
+		if (observer != null) {
+			observer.onChange();
+		}
+	}
 
-					segment.mergeWithNeighbour(bestNeighbour);
-					changed = true;
+	/**
+	 * @return Indice no grafo de costura da regiao do pixel (i, j), que
+	 * 		guarda o indice da regiao no seu ladrilho mais um.
+	 */
+	private int regionOf(int i, int j) {
+		int tile = (i / tileSize) * tileColumns + j / tileSize;
+		return tileBases[tile] + image.getSegment(i, j) - 1;
+	}
 
-					// Repinta o segmento na imagem
-					for (ImageZone zone : segment.zones) {
-						for (int i = zone.yFrom; i < zone.yTo; i++) {
-							for (int j = zone.xFrom; j < zone.xTo; j++) {
-								image.getSegment()[i][j] = (byte) (segment.segmentIndex);
-							}
-						}
-					}
+	/**
+	 * Liga no grafo as regioes que se tocam nas bordas entre ladrilhos.
+	 */
+	private void addSeamEdges(RegionGraph graph) {
+		for (int x = tileSize; x < image.getWidth(); x += tileSize) {
+			int previous = -1;
+			int previousNeighbour = -1;
+			for (int i = 0; i < image.getHeight(); i++) {
+				int region = regionOf(i, x - 1);
+				int neighbour = regionOf(i, x);
+				if (region != previous || neighbour != previousNeighbour) {
+					graph.addEdge(region, neighbour);
+					graph.addEdge(neighbour, region);
+					previous = region;
+					previousNeighbour = neighbour;
 				}
 			}
-			observer.onChange();
 		}
-		if (observer != null) {
-			observer.onComplete();
+		for (int y = tileSize; y < image.getHeight(); y += tileSize) {
+			int previous = -1;
+			int previousNeighbour = -1;
+			for (int j = 0; j < image.getWidth(); j++) {
+				int region = regionOf(y - 1, j);
+				int neighbour = regionOf(y, j);
+				if (region != previous || neighbour != previousNeighbour) {
+					graph.addEdge(region, neighbour);
+					graph.addEdge(neighbour, region);
+					previous = region;
+					previousNeighbour = neighbour;
+				}
+			}
 		}
 	}
 
 	// ---------- Objetos
 
 	/**
-     * Um segmento de uma imagem. Formado por varias ImageZone. Contem um conjunto de vizinho nas quatro direcoes.
+	 * Retangulo da imagem que passa pelo split e pelo merge: a imagem
+	 * inteira ou um ladrilho. Guarda as imagens integrais do retangulo e, no
+	 * modo em ladrilhos, os seus segmentos, que so sao gravados na imagem
+	 * quando o ladrilho termina. No modo em ladrilhos as tarefas de um
+	 * ladrilho executam na propria thread, ja que os ladrilhos sao
+	 * processados em paralelo.
 	 */
-	class ImageSegment {
+	class Tile {
+
+		private int xFrom;
+		private int yFrom;
+		private int width;
+		private int height;
+
+		/* Imagens integrais de cada feature: na posicao (i, j), a soma dos
+		 * valores (e dos quadrados) das linhas 0..i-1 e colunas 0..j-1 */
+		private long[][] sums;
+		private long[][] squares;
+
+		/* Segmento de cada pixel, ou null para pintar direto na imagem */
+		private int[] segments;
+		private int grain;
+
+		Tile(int xFrom, int yFrom, int width, int height, boolean tiled) {
+			this.xFrom = xFrom;
+			this.yFrom = yFrom;
+			this.width = width;
+			this.height = height;
+			if (tiled) {
+				segments = new int[arrayLength((long) width * height,
+						"os segmentos do ladrilho")];
+				grain = Integer.MAX_VALUE;
+			} else {
+				grain = GRAIN;
+			}
+		}
 
-		private Set<ImageSegment> neighbours = new HashSet<>();
-		private Set<ImageZone> zones = new HashSet<>();
-		private int segmentIndex;
+		private void invoke(RecursiveAction task) {
+			if (segments == null) {
+				pool.invoke(task);
+			} else {
+				task.invoke();
+			}
+		}
 
 		/**
-         * Cria um novo segmento com uma unica zona e um numero especifico de segmentos
+		 * Monta as imagens integrais da soma e da soma dos quadrados de cada
+		 * feature, com uma linha e uma coluna de zeros no inicio: primeiro a
+		 * soma acumulada de cada linha e depois a de cada coluna.
 		 */
-        ImageSegment(ImageZone zone, int segment) {
-			this.zones.add(zone);
-			zone.segment = this;
-			this.segmentIndex = segment;
+		private void buildIntegralImages() {
+			int depth = image.getDepth();
+			int cells = arrayLength((long) (width + 1) * (height + 1),
+					"as imagens integrais");
+			sums = new long[depth][cells];
+			squares = new long[depth][cells];
+
+			int bands = segments == null ? parallelism * 4 : 1;
+			invoke(new IntegralTask(this, false, 0, height, Math.max(1, height
+					/ bands)));
+			invoke(new IntegralTask(this, true, 1, width + 1, Math.max(1,
+					(width + 1) / bands)));
 		}
 
 		/**
-         * Busca entre todos os vizinhos aqueles que sao homogeneos, e de todos estes retorna o que tem o menor desvio no vetor
-         * e se juntara com ele
-		 *
-		 * @return O melhor vertice homogeneo
+		 * Soma de uma imagem integral sobre um retangulo.
 		 */
-        ImageSegment getBestHomogeneousNeighbour() {
-
-			double bestNeighbourDistance = Double.MAX_VALUE;
-			ImageSegment bestNeighbour = null;
-
-			// Busca o melhor vizinho
-			for (ImageSegment neighbour : this.neighbours) {
-				if (neighbour.size() == 0) {
-					continue;
-				}
-				if (this.isHomogeneousWithRespectTo(neighbour)) {
-					if (this.distanceWithNeighbour(neighbour) < bestNeighbourDistance) {
-						bestNeighbourDistance = this
-								.distanceWithNeighbour(neighbour);
-						bestNeighbour = neighbour;
-					}
-				}
-			}
-			return bestNeighbour;
+		long rectangleSum(long[] table, int xFrom, int xTo, int yFrom,
+				int yTo) {
+			int width = this.width + 1;
+			return table[yTo * width + xTo] - table[yFrom * width + xTo]
+					- table[yTo * width + xFrom] + table[yFrom * width + xFrom];
 		}
 
 		/**
-         * Verifica se o segmento atual e homogeneo com outro segmento
+		 * Verifica se o retangulo cumpre o criterio de homogenidade.
 		 */
-        boolean isHomogeneousWithRespectTo(ImageSegment segment) {
+		boolean isHomogeneous(int xFrom, int xTo, int yFrom, int yTo) {
+			long count = (long) (xTo - xFrom) * (yTo - yFrom);
 			for (int i = 0; i < image.getDepth(); i++) {
-				if (this.distanceWith(segment, i) > mergeStandardDeviation)
+				double sum = rectangleSum(sums[i], xFrom, xTo, yFrom, yTo);
+				double square = rectangleSum(squares[i], xFrom, xTo, yFrom,
+						yTo);
+
+				// Variancia como media dos quadrados menos o quadrado da media
+				double variance = (square - sum * sum / count) / count;
+				if (Math.sqrt(Math.max(0, variance)) > splitStandardDeviation)
 					return false;
 			}
 			return true;
 		}
 
 		/**
-         * Junta o segmento atual com outro. Todas as zonas do outro sao transferidas para o atual, assim como os vizinhos,
-         * e todas as referencias sao atualizadas. Posteriormente, o segmento passado por parametro podera ser eliminado da
-         * lista de segmentos
-		 * 
-		 * @param segment
-		 *            Segmentos que deve ser unido.
+		 * Pinta um retangulo com o segmento.
 		 */
-        void mergeWithNeighbour(ImageSegment segment) {
-
-			segment.segmentIndex = 0;
-
-			// Mover todas as zonas de segmento vazia para mim
-			for (ImageZone zone : segment.zones) {
-				zone.segment = this;
+		void paint(int xFrom, int xTo, int yFrom, int yTo, int segment) {
+			for (int i = yFrom; i < yTo; i++) {
+				for (int j = xFrom; j < xTo; j++) {
+					if (segments == null) {
+						image.setSegment(this.yFrom + i, this.xFrom + j,
+								segment);
+					} else {
+						segments[i * width + j] = segment;
+					}
+				}
 			}
-			this.zones.addAll(segment.zones);
-			segment.zones.clear();
+		}
+
+		/**
+		 * Divide o retangulo por niveis ate que cada folha seja homogenea.
+		 * Pintando direto na imagem e havendo observador, cada nivel e
+		 * pintado, com os nos numerados dentro do nivel, e notificado; como
+		 * cada no de um nivel contem ao menos uma folha, os segmentos nao
+		 * passam da quantidade de folhas. Sem observador, so as folhas sao
+		 * pintadas, depois do merge.
+		 *
+		 * @return As folhas, ou <code>null</code> se a thread foi
+		 * 		interrompida.
+		 */
+		Quadtree split() {
+			buildIntegralImages();
+			Quadtree tree = new Quadtree(width, height);
+
+			// Nos do nivel atual: posicao no nivel e retangulo de cada um
+			int count = 1;
+			int[] nodes = { 0, 0, 0, width, 0, height };
+			int level = 0;
+			boolean preview = segments == null && observer != null;
+			while (count > 0) {
+				if (isInterrupted())
+					return null;
+
+				// Cada no e pintado com o seu indice no nivel mais um
+				if (preview) {
+					image.reserveSegments(count + 1);
+				}
 
-			// Troca as referencias dos vizinhos do segmento.
-			for (ImageSegment neighbour : segment.neighbours) {
-				neighbour.neighbours.remove(segment); /* siempre */
+				// Decide em paralelo quais nos sao divididos
+				boolean[] divide = new boolean[count];
+				invoke(new SplitTask(this, nodes, divide, level, preview, 0,
+						count));
 
-				// Nao me considero vizinho
-				if (neighbour != this) {
-					neighbour.neighbours.add(this);
+				int divided = 0;
+				for (int n = 0; n < count; n++) {
+					if (divide[n]) {
+						divided++;
+					}
 				}
-			}
+				int[] children = new int[arrayLength(divided * 4L * 6L,
+						"os nos da quadtree")];
+				int childrenCount = 0;
+				for (int n = 0; n < count; n++) {
+					int x = nodes[n * 6];
+					int y = nodes[n * 6 + 1];
+
+					if (!divide[n]) {
+						tree.addLeaf(level, x, y);
+						continue;
+					}
 
-			// Adiciono ele a meus vizinhos no segmento
-			this.neighbours.addAll(segment.neighbours);
-			this.neighbours.remove(this);
+					int xFrom = nodes[n * 6 + 2];
+					int xTo = nodes[n * 6 + 3];
+					int yFrom = nodes[n * 6 + 4];
+					int yTo = nodes[n * 6 + 5];
+					int xMid = xFrom + ((xTo - xFrom) / 2);
+					int yMid = yFrom + ((yTo - yFrom) / 2);
+					for (int q = 0; q < 4; q++) {
+						int c = childrenCount++ * 6;
+						children[c] = 2 * x + (q & 1);
+						children[c + 1] = 2 * y + (q >> 1);
+						children[c + 2] = (q & 1) == 0 ? xFrom : xMid;
+						children[c + 3] = (q & 1) == 0 ? xMid : xTo;
+						children[c + 4] = (q >> 1) == 0 ? yFrom : yMid;
+						children[c + 5] = (q >> 1) == 0 ? yMid : yTo;
+					}
+				}
 
-			// Excluimos os vizinhos e as zonas do mesmo
-			segment.neighbours.clear();
-			segment.zones.clear();
+				if (preview) {
+					observer.onChange();
+				}
+				nodes = children;
+				count = childrenCount;
+				level++;
+			}
+			tree.sort();
+			return tree;
 		}
 
 		/**
-         * Calcula o desvio padrao de cada componente do vetor a respeito do vizinho que recebe como argumento.
-		 * 
-		 * @param segment
-		 *            Vizinho usado para medir a distancia
-		 * @return Desvio padrao.
+		 * Monta o grafo em que cada folha e uma regiao, ligada as folhas
+		 * vizinhas.
+		 *
+		 * @return O grafo, ou <code>null</code> se a thread foi interrompida.
 		 */
-        double distanceWithNeighbour(ImageSegment segment) {
-			double acum = 0;
-			for (int i = 0; i < image.getDepth(); i++) {
-				acum += Math.pow(this.distanceWith(segment, i), 2);
+		RegionGraph buildGraph(Quadtree tree) {
+			int[] rectangle = new int[4];
+			RegionGraph graph = new RegionGraph(tree.size());
+			for (int r = 0; r < tree.size(); r++) {
+				if (isInterrupted())
+					return null;
+
+				tree.getRectangle(r, rectangle);
+				graph.setRegion(r, this, rectangle[0], rectangle[1],
+						rectangle[2], rectangle[3]);
+				tree.addNeighbours(r, graph);
 			}
-			return Math.sqrt(acum);
+
+			// As imagens integrais nao sao mais necessarias
+			sums = squares = null;
+			return graph;
 		}
 
 		/**
-         * Calcula o desvio padrao de todos os pixels do segmento atual com os do segmento, para um componente do vetor.
-		 * 
-		 * @param segment
-		 *            Segmento que sera comparado.
-		 * @param feature
-		 *            Dimensao a avaliar o vetor
-		 * @return Desvio padrao da dimensao.
+		 * Numera as regioes do grafo desde 1 e pinta cada folha com o indice
+		 * da sua.
+		 *
+		 * @param labels Vetor onde deixar o indice de cada regiao, ou 0 se a
+		 * 		regiao foi unida a outra.
+		 * @return Quantidade de regioes.
 		 */
-		private double distanceWith(ImageSegment segment, int feature) {
+		int paintLeaves(Quadtree tree, RegionGraph graph, int[] labels) {
+			int[] leafLabels = new int[tree.size()];
+			int labelCount = 0;
+			for (int r = 0; r < tree.size(); r++) {
+				int root = graph.find(r);
+				if (labels[root] == 0) {
+					labels[root] = ++labelCount;
+				}
+				leafLabels[r] = labels[root];
+			}
+			if (segments == null) {
+				image.reserveSegments(labelCount + 1);
+			}
+			invoke(new PaintTask(this, tree, leafLabels, 0, tree.size()));
+			return labelCount;
+		}
+	}
 
-			double mean = 0;
-			double standardDeviation = 0;
-			int count = 0;
+	/**
+	 * Split e merge de um intervalo de ladrilhos, numerados linha a linha.
+	 */
+	class TileTask extends RecursiveAction {
 
-			for (ImageZone zone : zones) {
-				for (int i = zone.yFrom; i < zone.yTo; i++) {
-					for (int j = zone.xFrom; j < zone.xTo; j++) {
-						mean += image.getData()[i][j][feature];
-						count++;
+		private static final long serialVersionUID = 1L;
+
+		private int from;
+		private int to;
+
+		TileTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+				return;
+			}
+
+			int x = (from % tileColumns) * tileSize;
+			int y = (from / tileColumns) * tileSize;
+			Tile tile = new Tile(x, y, Math.min(tileSize, image.getWidth() - x),
+					Math.min(tileSize, image.getHeight() - y), true);
+
+			Quadtree tree = tile.split();
+			if (tree == null)
+				return;
+			RegionGraph graph = tile.buildGraph(tree);
+			if (graph == null || !graph.mergeAll())
+				return;
+
+			int[] labels = new int[tree.size()];
+			int count = tile.paintLeaves(tree, graph, labels);
+			addTile(from, tile, graph.compact(labels, count));
+		}
+	}
+
+	/**
+	 * Soma acumulada das imagens integrais de um retangulo sobre um intervalo
+	 * de linhas (cada linha da esquerda para a direita) ou de colunas das
+	 * tabelas (cada coluna de cima para baixo).
+	 */
+	class IntegralTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Tile tile;
+		private boolean columns;
+		private int from;
+		private int to;
+		private int grain;
+
+		IntegralTask(Tile tile, boolean columns, int from, int to, int grain) {
+			this.tile = tile;
+			this.columns = columns;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new IntegralTask(tile, columns, from, mid, grain),
+						new IntegralTask(tile, columns, mid, to, grain));
+				return;
+			}
+
+			int width = tile.width + 1;
+			int depth = image.getDepth();
+			if (columns) {
+				for (int i = 2; i <= tile.height; i++) {
+					for (int k = 0; k < depth; k++) {
+						long[] sum = tile.sums[k];
+						long[] square = tile.squares[k];
+						for (int j = i * width + from; j < i * width + to; j++) {
+							sum[j] += sum[j - width];
+							square[j] += square[j - width];
+						}
 					}
 				}
+				return;
 			}
 
-			for (ImageZone zone : segment.zones) {
-				for (int i = zone.yFrom; i < zone.yTo; i++) {
-					for (int j = zone.xFrom; j < zone.xTo; j++) {
-						mean += image.getData()[i][j][feature];
-						count++;
+			int[] feature = new int[depth];
+			for (int i = from; i < to; i++) {
+				int current = (i + 1) * width;
+				for (int j = 0; j < tile.width; j++) {
+					image.getFeature(tile.yFrom + i, tile.xFrom + j, feature);
+					for (int k = 0; k < depth; k++) {
+						long value = feature[k];
+						long[] sum = tile.sums[k];
+						long[] square = tile.squares[k];
+						sum[current + j + 1] = sum[current + j] + value;
+						square[current + j + 1] = square[current + j] + value
+								* value;
 					}
 				}
 			}
+		}
+	}
 
-			mean = mean / count;
+	/**
+	 * Decide quais nos de um nivel da quadtree devem ser divididos. Com
+	 * <code>paint</code>, pinta cada no na imagem com o seu indice mais um.
+	 */
+	class SplitTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Tile tile;
+		private int[] nodes;
+		private boolean[] divide;
+		private int level;
+		private boolean paint;
+		private int from;
+		private int to;
+
+		SplitTask(Tile tile, int[] nodes, boolean[] divide, int level,
+				boolean paint, int from, int to) {
+			this.tile = tile;
+			this.nodes = nodes;
+			this.divide = divide;
+			this.level = level;
+			this.paint = paint;
+			this.from = from;
+			this.to = to;
+		}
 
-			for (ImageZone zone : zones) {
-				for (int i = zone.yFrom; i < zone.yTo; i++) {
-					for (int j = zone.xFrom; j < zone.xTo; j++) {
-						standardDeviation += Math.pow(
-								image.getData()[i][j][feature] - mean, 2);
-					}
-				}
+		@Override
+		protected void compute() {
+			if (to - from > tile.grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SplitTask(tile, nodes, divide, level, paint,
+						from, mid), new SplitTask(tile, nodes, divide, level,
+						paint, mid, to));
+				return;
 			}
-			for (ImageZone zone : segment.zones) {
-				for (int i = zone.yFrom; i < zone.yTo; i++) {
-					for (int j = zone.xFrom; j < zone.xTo; j++) {
-						standardDeviation += Math.pow(
-								image.getData()[i][j][feature] - mean, 2);
-					}
+
+			for (int n = from; n < to; n++) {
+				int xFrom = nodes[n * 6 + 2];
+				int xTo = nodes[n * 6 + 3];
+				int yFrom = nodes[n * 6 + 4];
+				int yTo = nodes[n * 6 + 5];
+
+				// Pinta os segmentos na imagem
+				if (paint) {
+					tile.paint(xFrom, xTo, yFrom, yTo, n + 1);
 				}
+
+				// Determina se o no deve ser dividido ou nao
+				divide[n] = level < Quadtree.MAX_LEVEL
+						&& (long) (xTo - xFrom) * (yTo - yFrom) > minSize
+						&& xTo - xFrom > 1 && yTo - yFrom > 1
+						&& !tile.isHomogeneous(xFrom, xTo, yFrom, yTo);
 			}
-			standardDeviation = Math.sqrt(standardDeviation / count);
-			return standardDeviation;
 		}
+	}
 
-		/**
-         * Calcula o tamanho de um segmento com a somatoria dos tamanhos das zonas contidas nele
-		 * 
-		 * @return Quantidade de pixels que incluem o segmento.
-		 */
-		int size() {
-			int count = 0;
-			for (ImageZone zone : zones) {
-				count += (zone.yTo - zone.yFrom) * (zone.xTo - zone.xFrom);
+	/**
+	 * Pinta um intervalo de folhas da quadtree, cada uma com o seu segmento.
+	 */
+	class PaintTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Tile tile;
+		private Quadtree tree;
+		private int[] segments;
+		private int from;
+		private int to;
+
+		PaintTask(Tile tile, Quadtree tree, int[] segments, int from, int to) {
+			this.tile = tile;
+			this.tree = tree;
+			this.segments = segments;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > tile.grain) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new PaintTask(tile, tree, segments, from, mid),
+						new PaintTask(tile, tree, segments, mid, to));
+				return;
+			}
+
+			int[] rectangle = new int[4];
+			for (int r = from; r < to; r++) {
+				tree.getRectangle(r, rectangle);
+				tile.paint(rectangle[0], rectangle[1], rectangle[2],
+						rectangle[3], segments[r]);
 			}
-			return count;
 		}
 	}
 
 	/**
-     * Um quadrado da imagem. Um segmento e formado por varios deste.
+	 * Troca o segmento de cada pixel de um intervalo de linhas, que guarda o
+	 * indice da sua regiao no ladrilho mais um, pelo segmento final da
+	 * regiao.
 	 */
-	class ImageZone {
-		private int xFrom;
-		private int yFrom;
-		private int xTo;
-		private int yTo;
+	class RelabelTask extends RecursiveAction {
 
-		private ImageSegment segment;
+		private static final long serialVersionUID = 1L;
 
-		private Set<ImageZone> east = new HashSet<>();
-		private Set<ImageZone> west = new HashSet<>();
-		private Set<ImageZone> north = new HashSet<>();
-		private Set<ImageZone> south = new HashSet<>();
+		private int[] segments;
+		private int rowFrom;
+		private int rowTo;
+		private int bandHeight;
 
-		ImageZone(int x_from, int x_to, int y_from, int y_to,
-				int segmentIndex) {
+		RelabelTask(int[] segments, int rowFrom, int rowTo, int bandHeight) {
+			this.segments = segments;
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.bandHeight = bandHeight;
+		}
 
-			if (x_to <= x_from || y_to <= y_from) {
-				throw new RuntimeException(
-						"Nao pode existir uma zona menor do que 1 pixel.");
+		@Override
+		protected void compute() {
+			if (rowTo - rowFrom > bandHeight) {
+				int rowMid = (rowFrom + rowTo) >>> 1;
+				invokeAll(new RelabelTask(segments, rowFrom, rowMid, bandHeight),
+						new RelabelTask(segments, rowMid, rowTo, bandHeight));
+				return;
 			}
 
-			this.xFrom = x_from;
-			this.yFrom = y_from;
-			this.xTo = x_to;
-			this.yTo = y_to;
+			for (int i = rowFrom; i < rowTo; i++) {
+				for (int j = 0; j < image.getWidth(); j++) {
+					image.setSegment(i, j, segments[regionOf(i, j)]);
+				}
+			}
+		}
+	}
 
-			this.segment = new ImageSegment(this, segmentIndex);
+	/**
+	 * Grafo de adjacencia das regioes, guardado em vetores de tipos
+	 * primitivos. As regioes unidas sao identificadas com union-find, e os
+	 * vizinhos de cada regiao formam uma lista encadeada de arestas. Ao unir
+	 * duas regioes, as listas sao concatenadas; as arestas repetidas ou
+	 * internas sao removidas na proxima vez que a lista e percorrida.
+	 */
+	class RegionGraph {
+
+		private int depth = image.getDepth();
+
+		/* Union-find, e versao de cada regiao, incrementada a cada uniao
+		 * para invalidar os pares que estao na fila */
+		private int[] parent;
+		private int[] version;
+
+		/* Quantidade de pixels, e soma e soma dos quadrados de cada feature */
+		private long[] count;
+		private long[] sum;
+		private long[] sumSquares;
+
+		/* Primeira e ultima aresta de cada regiao, e de cada aresta a regiao
+		 * de destino e a proxima aresta da lista, ou -1 */
+		private int[] head;
+		private int[] tail;
+		private int[] target;
+		private int[] next;
+		private int edges;
+
+		/* Marca das regioes ja vistas ao percorrer uma lista */
+		private int[] marks;
+		private int mark;
+
+		RegionGraph(int regions) {
+			parent = new int[regions];
+			version = new int[regions];
+			count = new long[regions];
+			sum = new long[arrayLength((long) regions * depth,
+					"os acumuladores das regioes")];
+			sumSquares = new long[sum.length];
+			head = new int[regions];
+			tail = new int[regions];
+			target = new int[arrayLength(regions * 4L,
+					"as arestas das regioes")];
+			next = new int[target.length];
+			marks = new int[regions];
+			for (int r = 0; r < regions; r++) {
+				parent[r] = r;
+			}
+			Arrays.fill(head, -1);
+			Arrays.fill(tail, -1);
+		}
+
+		int size() {
+			return parent.length;
 		}
 
 		/**
-         * Divide um segmento que contem apenas uma zona e retorna 4 segmentos, cada um com 1 zona.
+		 * Inicializa os acumuladores de uma regiao com os pixels de um
+		 * retangulo do ladrilho.
 		 */
-		ImageZone[] divide(int segment) {
+		void setRegion(int region, Tile tile, int xFrom, int xTo, int yFrom,
+				int yTo) {
+			count[region] = (long) (xTo - xFrom) * (yTo - yFrom);
+			for (int i = 0; i < depth; i++) {
+				sum[region * depth + i] = tile.rectangleSum(tile.sums[i], xFrom,
+						xTo, yFrom, yTo);
+				sumSquares[region * depth + i] = tile.rectangleSum(
+						tile.squares[i], xFrom, xTo, yFrom, yTo);
+			}
+		}
 
-			int x_mid = xFrom + ((xTo - xFrom) / 2);
-			int y_mid = yFrom + ((yTo - yFrom) / 2);
+		/**
+		 * Copia as regioes e as arestas de outro grafo, sem unioes, somando
+		 * <code>base</code> aos seus indices.
+		 */
+		void add(RegionGraph graph, int base) {
+			int regions = graph.size();
+			System.arraycopy(graph.count, 0, count, base, regions);
+			System.arraycopy(graph.sum, 0, sum, base * depth, regions * depth);
+			System.arraycopy(graph.sumSquares, 0, sumSquares, base * depth,
+					regions * depth);
+			for (int r = 0; r < regions; r++) {
+				for (int e = graph.head[r]; e != -1; e = graph.next[e]) {
+					addEdge(base + r, base + graph.target[e]);
+				}
+			}
+		}
 
-			ImageZone nw = new ImageZone(xFrom, x_mid, yFrom, y_mid, segment);
-			ImageZone ne = new ImageZone(x_mid, xTo, yFrom, y_mid, segment + 1);
-			ImageZone sw = new ImageZone(xFrom, x_mid, y_mid, yTo, segment + 2);
-			ImageZone se = new ImageZone(x_mid, xTo, y_mid, yTo, segment + 3);
+		/**
+		 * Cria um grafo com uma regiao para cada regiao que restou depois das
+		 * unioes, com os seus acumuladores e vizinhos.
+		 *
+		 * @param labels Indice mais um de cada regiao que restou no novo
+		 * 		grafo, ou 0 para as que foram unidas a outras.
+		 * @param regions Quantidade de regioes que restaram.
+		 */
+		RegionGraph compact(int[] labels, int regions) {
+			RegionGraph graph = new RegionGraph(regions);
+			for (int r = 0; r < parent.length; r++) {
+				if (labels[r] == 0) {
+					continue;
+				}
+				int region = labels[r] - 1;
+				graph.count[region] = count[r];
+				System.arraycopy(sum, r * depth, graph.sum, region * depth,
+						depth);
+				System.arraycopy(sumSquares, r * depth, graph.sumSquares,
+						region * depth, depth);
+				for (int e = head[r]; e != -1; e = next[e]) {
+					int neighbour = find(target[e]);
+					if (neighbour != r) {
+						graph.addEdge(region, labels[neighbour] - 1);
+					}
+				}
+			}
+			return graph;
+		}
 
-			// Define para os vizinhos do norte externos
-			nw.north = new HashSet<>();
-			ne.north = new HashSet<>();
-			for (ImageZone neighbour : north) {
-				neighbour.south.remove(this);
+		/**
+		 * Adiciona <code>to</code> aos vizinhos de <code>from</code>.
+		 */
+		void addEdge(int from, int to) {
+			if (edges == target.length) {
+				int length = arrayLength(Math.max(edges + 1L, Math.min(
+						edges * 2L, MAX_ARRAY_LENGTH)),
+						"as arestas das regioes");
+				target = Arrays.copyOf(target, Math.max(4, length));
+				next = Arrays.copyOf(next, Math.max(4, length));
+			}
+			target[edges] = to;
+			next[edges] = -1;
+			if (head[from] == -1) {
+				head[from] = edges;
+			} else {
+				next[tail[from]] = edges;
+			}
+			tail[from] = edges++;
+		}
 
-				if (neighbour.xFrom < nw.xTo) {
-					nw.north.add(neighbour);
-					neighbour.south.add(nw);
-				}
+		/**
+		 * @return A regiao que contem <code>region</code> depois das unioes.
+		 */
+		int find(int region) {
+			while (parent[region] != region) {
+				parent[region] = parent[parent[region]];
+				region = parent[region];
+			}
+			return region;
+		}
 
-				if (neighbour.xTo > ne.xFrom) {
-					ne.north.add(neighbour);
-					neighbour.south.add(ne);
-				}
+		/**
+		 * Une as regioes vizinhas em ordem de custo enquanto houver unioes
+		 * homogeneas.
+		 *
+		 * @return <code>false</code> se a thread foi interrompida.
+		 */
+		boolean mergeAll() {
+			PriorityQueue<MergeCandidate> candidates = new PriorityQueue<>();
+			for (int r = 0; r < parent.length; r++) {
+				offerBestNeighbour(r, candidates);
 			}
 
-            // Define para os vizinhos do sul externos
-			sw.south = new HashSet<>();
-			se.south = new HashSet<>();
-			for (ImageZone neighbour : south) {
-				neighbour.north.remove(this);
+			while (!candidates.isEmpty()) {
+				if (isInterrupted())
+					return false;
 
-				if (neighbour.xFrom < sw.xTo) {
-					sw.south.add(neighbour);
-					neighbour.north.add(sw);
+				// A regiao que mudou ja colocou outro par na fila; se apenas o
+				// vizinho mudou, busca de novo o melhor vizinho
+				MergeCandidate candidate = candidates.poll();
+				if (version[candidate.first] != candidate.firstVersion) {
+					continue;
+				}
+				if (version[candidate.second] != candidate.secondVersion) {
+					offerBestNeighbour(candidate.first, candidates);
+					continue;
 				}
 
-				if (neighbour.xTo > se.xFrom) {
-					se.south.add(neighbour);
-					neighbour.north.add(se);
+				// A maior regiao absorve a menor, para manter a arvore rasa
+				int region = candidate.first;
+				int neighbour = candidate.second;
+				if (count[region] < count[neighbour]) {
+					region = candidate.second;
+					neighbour = candidate.first;
 				}
+				union(region, neighbour);
+				offerBestNeighbour(region, candidates);
 			}
+			return true;
+		}
 
-            // Define para os vizinhos do norte oeste
-			nw.west = new HashSet<>();
-			sw.west = new HashSet<>();
-			for (ImageZone neighbour : west) {
-				neighbour.east.remove(this);
+		/**
+		 * Junta <code>neighbour</code> a <code>region</code>: soma os
+		 * acumuladores e concatena as listas de vizinhos.
+		 */
+		private void union(int region, int neighbour) {
+			parent[neighbour] = region;
+			version[region]++;
+			version[neighbour]++;
+
+			count[region] += count[neighbour];
+			for (int i = 0; i < depth; i++) {
+				sum[region * depth + i] += sum[neighbour * depth + i];
+				sumSquares[region * depth + i] += sumSquares[neighbour * depth
+						+ i];
+			}
 
-				if (neighbour.yFrom < nw.yTo) {
-					nw.west.add(neighbour);
-					neighbour.east.add(nw);
+			if (head[neighbour] != -1) {
+				if (head[region] == -1) {
+					head[region] = head[neighbour];
+				} else {
+					next[tail[region]] = head[neighbour];
 				}
+				tail[region] = tail[neighbour];
+				head[neighbour] = tail[neighbour] = -1;
+			}
+		}
 
-				if (neighbour.yFrom < sw.yTo) {
-					sw.west.add(neighbour);
-					neighbour.east.add(sw);
+		/**
+		 * Percorre os vizinhos da regiao, removendo as arestas repetidas ou
+		 * internas, e coloca na fila o par com o vizinho homogeneo de menor
+		 * desvio, se houver algum.
+		 */
+		private void offerBestNeighbour(int region,
+				PriorityQueue<MergeCandidate> candidates) {
+			double bestNeighbourDistance = Double.MAX_VALUE;
+			int bestNeighbour = -1;
+
+			marks[region] = ++mark;
+			int previous = -1;
+			for (int e = head[region]; e != -1; e = next[e]) {
+				int neighbour = find(target[e]);
+				if (marks[neighbour] == mark) {
+					// Remove a aresta da lista
+					if (previous == -1) {
+						head[region] = next[e];
+					} else {
+						next[previous] = next[e];
+					}
+					continue;
+				}
+				marks[neighbour] = mark;
+				target[e] = neighbour;
+				previous = e;
+
+				double distance = distanceWithNeighbour(region, neighbour);
+				if (distance < bestNeighbourDistance) {
+					bestNeighbourDistance = distance;
+					bestNeighbour = neighbour;
 				}
 			}
+			tail[region] = previous;
 
-            // Define para os vizinhos do norte leste
-			ne.east = new HashSet<>();
-			se.east = new HashSet<>();
-			for (ImageZone neighbour : east) {
-				neighbour.west.remove(this);
+			if (bestNeighbour != -1) {
+				candidates.add(new MergeCandidate(region, bestNeighbour,
+						version[region], version[bestNeighbour],
+						bestNeighbourDistance));
+			}
+		}
 
-				if (neighbour.yFrom < ne.yTo) {
-					ne.east.add(neighbour);
-					neighbour.west.add(ne);
+		/**
+		 * Calcula o desvio padrao da uniao das duas regioes, como a norma dos
+		 * desvios de cada componente do vetor. A uniao e homogenea se nenhum
+		 * componente passar de <code>mergeStandardDeviation</code>.
+		 *
+		 * @return Desvio padrao, ou infinito se a uniao nao for homogenea.
+		 */
+		private double distanceWithNeighbour(int region, int neighbour) {
+			double maxVariance = mergeStandardDeviation * mergeStandardDeviation;
+			double n = count[region] + count[neighbour];
+			double acum = 0;
+			for (int i = 0; i < depth; i++) {
+				double s = sum[region * depth + i] + sum[neighbour * depth + i];
+				double square = sumSquares[region * depth + i]
+						+ sumSquares[neighbour * depth + i];
+
+				// Variancia como media dos quadrados menos o quadrado da media
+				double variance = Math.max(0, (square - s * s / n) / n);
+				if (variance > maxVariance) {
+					return Double.POSITIVE_INFINITY;
 				}
+				acum += variance;
+			}
+			return Math.sqrt(acum);
+		}
+	}
 
-				if (neighbour.yFrom < se.yTo) {
-					se.east.add(neighbour);
-					neighbour.west.add(se);
-				}
+	/**
+	 * Par de regioes vizinhas que podem ser unidas, com o custo da uniao e a
+	 * versao de cada regiao quando o par foi criado.
+	 */
+	class MergeCandidate implements Comparable<MergeCandidate> {
+		private int first;
+		private int second;
+		private int firstVersion;
+		private int secondVersion;
+		private double cost;
+
+		MergeCandidate(int first, int second, int firstVersion,
+				int secondVersion, double cost) {
+			this.first = first;
+			this.second = second;
+			this.firstVersion = firstVersion;
+			this.secondVersion = secondVersion;
+			this.cost = cost;
+		}
+
+		public int compareTo(MergeCandidate candidate) {
+			return Double.compare(cost, candidate.cost);
+		}
+	}
+
+	/**
+	 * Quadtree linear: guarda apenas as folhas, cada uma como um
+	 * <code>long</code> com o codigo de Morton do seu canto superior esquerdo
+	 * no nivel <code>MAX_LEVEL</code> e, nos bits mais baixos, o seu nivel.
+	 * No nivel <code>l</code>, a posicao <code>x</code> corresponde ao
+	 * intervalo de colunas obtido dividindo o retangulo ao meio <code>l</code>
+	 * vezes, seguindo os bits de <code>x</code>; o mesmo vale para as linhas.
+	 * Depois de <code>sort</code>, a folha que contem uma posicao e
+	 * encontrada por busca binaria.
+	 */
+	class Quadtree {
+
+		static final int MAX_LEVEL = 29;
+		private static final int LEVEL_BITS = 5;
+
+		private int width;
+		private int height;
+		private long[] leaves = new long[1024];
+		private int size;
+
+		Quadtree(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		void addLeaf(int level, int x, int y) {
+			if (size == leaves.length) {
+				leaves = Arrays.copyOf(leaves, size * 2);
 			}
+			int shift = MAX_LEVEL - level;
+			leaves[size++] = interleave(x << shift, y << shift) << LEVEL_BITS
+					| level;
+		}
+
+		/**
+		 * Ordena as folhas pelo codigo de Morton.
+		 */
+		void sort() {
+			Arrays.sort(leaves, 0, size);
+		}
+
+		int size() {
+			return size;
+		}
 
-			/* Vecinos internos */
-			nw.south = new HashSet<>(Collections.singletonList(sw));
-			nw.east = new HashSet<>(Collections.singletonList(ne));
-			ne.west = new HashSet<>(Collections.singletonList(nw));
-			ne.south = new HashSet<>(Collections.singletonList(se));
-			sw.north = new HashSet<>(Collections.singletonList(nw));
-			sw.east = new HashSet<>(Collections.singletonList(se));
-			se.north = new HashSet<>(Collections.singletonList(ne));
-			se.west = new HashSet<>(Collections.singletonList(sw));
+		int level(int leaf) {
+			return (int) (leaves[leaf] & ((1 << LEVEL_BITS) - 1));
+		}
+
+		/* Posicao do canto superior esquerdo da folha no nivel MAX_LEVEL */
+		int cellX(int leaf) {
+			return compact(leaves[leaf] >>> LEVEL_BITS);
+		}
 
-			return new ImageZone[] { nw, ne, sw, se };
+		int cellY(int leaf) {
+			return compact(leaves[leaf] >>> LEVEL_BITS + 1);
 		}
 
 		/**
-         * Verifica se o segmento atual cumpre o criterio de homogenidade.
+		 * @return A folha que contem a posicao, no nivel
+		 * 		<code>MAX_LEVEL</code>.
 		 */
-		boolean isHomogeneus() {
-			for (int i = 0; i < image.getDepth(); i++) {
-				if (this.standardDeviation(i) > splitStandardDeviation)
-					return false;
-			}
-			return true;
+		int find(int cellX, int cellY) {
+			long key = interleave(cellX, cellY) << LEVEL_BITS
+					| ((1 << LEVEL_BITS) - 1);
+			int index = Arrays.binarySearch(leaves, 0, size, key);
+			return index >= 0 ? index : -index - 2;
 		}
 
-		double standardDeviation(int feature) {
-			double mean = mean(feature);
-			double acum = 0;
-			int count = 0;
+		/**
+		 * Calcula o retangulo da folha: coluna inicial e final e linha inicial
+		 * e final.
+		 */
+		void getRectangle(int leaf, int[] rectangle) {
+			int level = level(leaf);
+			int shift = MAX_LEVEL - level;
+			interval(cellX(leaf) >>> shift, level, width, rectangle, 0);
+			interval(cellY(leaf) >>> shift, level, height, rectangle, 2);
+		}
 
-			for (int i = yFrom; i < yTo; i++) {
-				for (int j = xFrom; j < xTo; j++) {
-					acum += Math.pow(image.getData()[i][j][feature] - mean, 2);
-					count++;
+		private void interval(int position, int level, int length,
+				int[] interval, int offset) {
+			int from = 0;
+			int to = length;
+			for (int b = level - 1; b >= 0; b--) {
+				int mid = from + ((to - from) / 2);
+				if ((position >>> b & 1) == 0) {
+					to = mid;
+				} else {
+					from = mid;
 				}
 			}
-
-			acum = acum / count;
-			return Math.sqrt(acum);
+			interval[offset] = from;
+			interval[offset + 1] = to;
 		}
 
-		double mean(int feature) {
-			double acum = 0;
-			int count = 0;
-
-			for (int i = yFrom; i < yTo; i++) {
-				for (int j = xFrom; j < xTo; j++) {
-					acum += image.getData()[i][j][feature];
-					count++;
+		/**
+		 * Liga no grafo a folha as folhas vizinhas a leste e ao sul, nos dois
+		 * sentidos. Os vizinhos a oeste e ao norte sao ligados quando suas
+		 * folhas sao visitadas.
+		 */
+		void addNeighbours(int leaf, RegionGraph graph) {
+			int side = 1 << (MAX_LEVEL - level(leaf));
+			int x = cellX(leaf);
+			int y = cellY(leaf);
+
+			// Percorre a borda oeste da regiao a leste
+			if (x + side < 1 << MAX_LEVEL) {
+				for (int cy = y; cy < y + side;) {
+					int neighbour = find(x + side, cy);
+					graph.addEdge(leaf, neighbour);
+					graph.addEdge(neighbour, leaf);
+					cy = cellY(neighbour) + (1 << (MAX_LEVEL - level(neighbour)));
 				}
 			}
 
-			return acum / count;
+			// Percorre a borda norte da regiao ao sul
+			if (y + side < 1 << MAX_LEVEL) {
+				for (int cx = x; cx < x + side;) {
+					int neighbour = find(cx, y + side);
+					graph.addEdge(leaf, neighbour);
+					graph.addEdge(neighbour, leaf);
+					cx = cellX(neighbour) + (1 << (MAX_LEVEL - level(neighbour)));
+				}
+			}
 		}
+	}
 
-		int size() {
-			return (xTo - xFrom) * (yTo - yFrom);
-		}
+	/**
+	 * Intercala os bits de <code>x</code> (posicoes pares) e <code>y</code>
+	 * (posicoes impares).
+	 */
+	private static long interleave(int x, int y) {
+		return spread(x) | spread(y) << 1;
 	}
 
+	private static long spread(int value) {
+		long v = value & 0xFFFFFFFFL;
+		v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+		v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+		v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | v << 2) & 0x3333333333333333L;
+		v = (v | v << 1) & 0x5555555555555555L;
+		return v;
+	}
+
+	/**
+	 * Inverso de <code>spread</code>: junta os bits das posicoes pares.
+	 */
+	private static int compact(long value) {
+		long v = value & 0x5555555555555555L;
+		v = (v | v >>> 1) & 0x3333333333333333L;
+		v = (v | v >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | v >>> 4) & 0x00FF00FF00FF00FFL;
+		v = (v | v >>> 8) & 0x0000FFFF0000FFFFL;
+		v = (v | v >>> 16) & 0x00000000FFFFFFFFL;
+		return (int) v;
+	}
 }
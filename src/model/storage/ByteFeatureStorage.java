@@ -0,0 +1,45 @@
+package model.storage;
+
+/**
+ * Vetor de valores guardados como <code>byte</code>.
+ */
+public class ByteFeatureStorage extends FeatureStorage {
+
+	private byte[] data;
+
+	public ByteFeatureStorage(int size) {
+		this.data = new byte[size];
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public ElementType getElementType() {
+		return ElementType.BYTE;
+	}
+
+	@Override
+	public long size() {
+		return data.length;
+	}
+
+	@Override
+	public int get(long index) {
+		return data[(int) index] & 0xFF;
+	}
+
+	@Override
+	public void set(long index, int value) {
+		data[(int) index] = (byte) (value < 0 ? 0 : value > 0xFF ? 0xFF : value);
+	}
+
+	@Override
+	public void get(long index, int[] values, int offset, int length) {
+		int start = (int) index;
+		for (int k = 0; k < length; k++) {
+			values[offset + k] = data[start + k] & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package model.storage;
+
+/**
+ * Tipo numerico usado para guardar os valores de uma feature.
+ * <code>BYTE</code> e <code>SHORT</code> guardam valores sem sinal e
+ * saturam os que ficam fora do intervalo.
+ */
+public enum ElementType {
+	BYTE(1, 0xFF), SHORT(2, 0xFFFF), INT(4, Integer.MAX_VALUE);
+
+	private int bytes;
+	private int maxValue;
+
+	ElementType(int bytes, int maxValue) {
+		this.bytes = bytes;
+		this.maxValue = maxValue;
+	}
+
+	/**
+	 * @return Quantidade de bytes ocupados por cada valor.
+	 */
+	public int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Maior valor inteiro que pode ser guardado sem perda.
+	 */
+	public int getMaxValue() {
+		return maxValue;
+	}
+
+	/**
+	 * Escolhe o menor tipo inteiro capaz de guardar valores entre 0 e
+	 * <code>maxValue</code>.
+	 */
+	public static ElementType forMaxValue(int maxValue) {
+		if (maxValue <= BYTE.maxValue) {
+			return BYTE;
+		} else if (maxValue <= SHORT.maxValue) {
+			return SHORT;
+		}
+		return INT;
+	}
+}
@@ -0,0 +1,62 @@
+package model.storage;
+
+/**
+ * Vetor de valores numericos indexado linearmente. As implementacoes
+ * diferem no tipo usado para guardar cada valor, mas todas leem e escrevem
+ * inteiros.
+ */
+public abstract class FeatureStorage {
+
+	/**
+	 * Cria um vetor em memoria com todos os valores em zero.
+	 *
+	 * @param type Tipo dos valores.
+	 * @param size Quantidade de valores.
+	 */
+	public static FeatureStorage allocate(ElementType type, long size) {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Quantidade de valores grande demais para a memoria: "
+							+ size);
+		}
+		switch (type) {
+		case BYTE:
+			return new ByteFeatureStorage((int) size);
+		case SHORT:
+			return new ShortFeatureStorage((int) size);
+		default:
+			return new IntFeatureStorage((int) size);
+		}
+	}
+
+	public abstract ElementType getElementType();
+
+	/**
+	 * @return Quantidade de valores.
+	 */
+	public abstract long size();
+
+	public abstract int get(long index);
+
+	public abstract void set(long index, int value);
+
+	/**
+	 * Le <code>length</code> valores consecutivos a partir de
+	 * <code>index</code>.
+	 */
+	public void get(long index, int[] values, int offset, int length) {
+		for (int k = 0; k < length; k++) {
+			values[offset + k] = get(index + k);
+		}
+	}
+
+	/**
+	 * Escreve <code>length</code> valores consecutivos a partir de
+	 * <code>index</code>.
+	 */
+	public void set(long index, int[] values, int offset, int length) {
+		for (int k = 0; k < length; k++) {
+			set(index + k, values[offset + k]);
+		}
+	}
+}
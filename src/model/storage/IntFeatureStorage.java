@@ -0,0 +1,47 @@
+package model.storage;
+
+/**
+ * Vetor de valores guardados como <code>int</code>.
+ */
+public class IntFeatureStorage extends FeatureStorage {
+
+	private int[] data;
+
+	public IntFeatureStorage(int size) {
+		this.data = new int[size];
+	}
+
+	public int[] getData() {
+		return data;
+	}
+
+	@Override
+	public ElementType getElementType() {
+		return ElementType.INT;
+	}
+
+	@Override
+	public long size() {
+		return data.length;
+	}
+
+	@Override
+	public int get(long index) {
+		return data[(int) index];
+	}
+
+	@Override
+	public void set(long index, int value) {
+		data[(int) index] = value;
+	}
+
+	@Override
+	public void get(long index, int[] values, int offset, int length) {
+		System.arraycopy(data, (int) index, values, offset, length);
+	}
+
+	@Override
+	public void set(long index, int[] values, int offset, int length) {
+		System.arraycopy(values, offset, data, (int) index, length);
+	}
+}
@@ -0,0 +1,108 @@
+package model.storage;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Vetor de valores guardado em uma regiao de um arquivo mapeado em memoria.
+ * Os dados ficam fora do heap e a paginacao fica a cargo do sistema
+ * operacional, de modo que o vetor pode ser maior que a memoria da JVM.
+ * Um arquivo mapeado somente para leitura pode ser compartilhado entre
+ * varios processos.
+ * <p>
+ * Como um <code>MappedByteBuffer</code> nao pode passar de 2GB, a regiao
+ * e mapeada em varios blocos.
+ */
+public class MappedFeatureStorage extends FeatureStorage {
+
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+	private MappedByteBuffer[] chunks;
+	private ElementType type;
+	private long size;
+
+	/**
+	 * Mapeia <code>size</code> valores do arquivo a partir de
+	 * <code>position</code>. Em modo <code>READ_WRITE</code> o arquivo e
+	 * estendido se for necessario. O canal pode ser fechado depois.
+	 *
+	 * @param channel Canal do arquivo.
+	 * @param mode Modo de mapeamento.
+	 * @param position Posicao em bytes do primeiro valor no arquivo.
+	 * @param type Tipo dos valores.
+	 * @param size Quantidade de valores.
+	 */
+	public MappedFeatureStorage(FileChannel channel, MapMode mode,
+			long position, ElementType type, long size) throws IOException {
+		this.type = type;
+		this.size = size;
+
+		long bytes = size * type.getBytes();
+		this.chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+		for (int k = 0; k < chunks.length; k++) {
+			long from = (long) k << CHUNK_SHIFT;
+			long length = Math.min(bytes - from, 1L << CHUNK_SHIFT);
+			chunks[k] = channel.map(mode, position + from, length);
+			chunks[k].order(ByteOrder.nativeOrder());
+		}
+	}
+
+	@Override
+	public ElementType getElementType() {
+		return type;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int get(long index) {
+		long offset = index * type.getBytes();
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+		int position = (int) (offset & CHUNK_MASK);
+		switch (type) {
+		case BYTE:
+			return chunk.get(position) & 0xFF;
+		case SHORT:
+			return chunk.getShort(position) & 0xFFFF;
+		default:
+			return chunk.getInt(position);
+		}
+	}
+
+	@Override
+	public void set(long index, int value) {
+		long offset = index * type.getBytes();
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+		int position = (int) (offset & CHUNK_MASK);
+		switch (type) {
+		case BYTE:
+			chunk.put(position, (byte) (value < 0 ? 0 : value > 0xFF ? 0xFF
+					: value));
+			break;
+		case SHORT:
+			chunk.putShort(position, (short) (value < 0 ? 0
+					: value > 0xFFFF ? 0xFFFF : value));
+			break;
+		default:
+			chunk.putInt(position, value);
+		}
+	}
+
+	/**
+	 * Grava no arquivo as alteracoes feitas nos valores.
+	 */
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			if (!chunk.isReadOnly()) {
+				chunk.force();
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package model.storage;
+
+/**
+ * Vetor de valores guardados como <code>short</code>.
+ */
+public class ShortFeatureStorage extends FeatureStorage {
+
+	private short[] data;
+
+	public ShortFeatureStorage(int size) {
+		this.data = new short[size];
+	}
+
+	public short[] getData() {
+		return data;
+	}
+
+	@Override
+	public ElementType getElementType() {
+		return ElementType.SHORT;
+	}
+
+	@Override
+	public long size() {
+		return data.length;
+	}
+
+	@Override
+	public int get(long index) {
+		return data[(int) index] & 0xFFFF;
+	}
+
+	@Override
+	public void set(long index, int value) {
+		data[(int) index] = (short) (value < 0 ? 0 : value > 0xFFFF ? 0xFFFF : value);
+	}
+
+	@Override
+	public void get(long index, int[] values, int offset, int length) {
+		int start = (int) index;
+		for (int k = 0; k < length; k++) {
+			values[offset + k] = data[start + k] & 0xFFFF;
+		}
+	}
+}
@@ -17,8 +17,11 @@ import model.filters.FilterAlgorithm;
 import model.filters.MaxFilter;
 import model.filters.MaxMinFilter;
 import model.filters.MidPointFilter;
+import model.filters.ParallelFilter;
 import model.filters.ReduceResolutionFilter;
 import model.filters.SharpenFilter;
+import model.filters.StripFilter;
+import model.segmentation.MiniBatchKMeans;
 import model.segmentation.SegmentationAlgorithm;
 
 public class Controller {
@@ -145,6 +148,9 @@ public class Controller {
 		}
 		ImageMatrix output = new ImageMatrix(matrix.getWidth(), matrix
 				.getHeight());
+		if (fa instanceof StripFilter) {
+			fa = new ParallelFilter((StripFilter) fa);
+		}
 		fa.filter(matrix, output);
 		matrix = output;
 		view.getImageView().redrawImage(matrix.getBufferedImage(), zoom);
@@ -159,10 +165,18 @@ public class Controller {
 		p.setVisible(true);
 		if (view.showConfirmDialog(p, "Segmentar")) {
 			ImageConverter ic = p.getSelectedFeature(matrix);
-			final FeatureMatrix fm = ic.createFeatureMatrix();
+			SegmentationAlgorithm method = p.getSelectedSegmentationMethod();
+			final FeatureMatrix fm;
+			if (method instanceof MiniBatchKMeans) {
+				// Calcula as features durante a segmentacao, sem guarda-las
+				fm = ic.createSegmentMatrix();
+				((MiniBatchKMeans) method).setConverter(ic);
+			} else {
+				fm = ic.createFeatureMatrix();
+			}
 			getProgressDialog().open("Processando...");
 			stopSegmentation();
-			algorithm = p.getSelectedSegmentationMethod();
+			algorithm = method;
 			algorithm.process(fm, new SegmentationObserver() {
 
 				private int i = 0;
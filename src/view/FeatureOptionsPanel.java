@@ -155,6 +155,9 @@ public class FeatureOptionsPanel extends JPanel {
 			c.gridy = 2;
 			addSpinner("Influencia Y:", "yinfluence", new SpinnerNumberModel(0,
 					0, 10000, 10), c);
+			c.gridy = 3;
+			addSpinner("Raio da janela:", "radius", new SpinnerNumberModel(1,
+					0, 50, 1), c);
 		}
 		return optionalPanel;
 	}
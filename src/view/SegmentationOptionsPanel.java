@@ -14,7 +14,7 @@ import model.segmentation.*;
 public class SegmentationOptionsPanel extends JPanel {
 
 	private enum SegmentationMethod {
-		K_MEANS("K-means"), SPLIT_AND_MERGE("Split & Merge");
+		K_MEANS("K-means"), MINI_BATCH_K_MEANS("Mini-batch K-means"), SPLIT_AND_MERGE("Split & Merge");
 
 		private String name;
 
@@ -92,6 +92,9 @@ public class SegmentationOptionsPanel extends JPanel {
 		case K_MEANS:
 			sa = new KMeans();
 			break;
+		case MINI_BATCH_K_MEANS:
+			sa = new MiniBatchKMeans();
+			break;
 		case SPLIT_AND_MERGE:
 			sa = new SplitAndMerge();
 			break;
@@ -127,6 +130,20 @@ public class SegmentationOptionsPanel extends JPanel {
 			c.insets = new Insets(2, 4, 2, 4);
 			c.gridy = 1;
 			addCheckBox("Usar todos os clusters", "useAllClusters", false, c);
+			c.gridy = 2;
+			addCheckBox("Acelerado (Hamerly)", "accelerated", false, c);
+			c.gridy = 3;
+			addCheckBox("Quantizado (cores distintas)", "quantized", false, c);
+			break;
+
+		case MINI_BATCH_K_MEANS:
+			c.gridy = 0;
+			addSpinner("Quant. máx. de clusters:", "clustersCount", new SpinnerNumberModel(10, 2, 50, 1), c);
+			c.insets = new Insets(2, 4, 2, 4);
+			c.gridy = 1;
+			addSpinner("Pixels por batch:", "batchSize", new SpinnerNumberModel(1024, 64, 65536, 64), c);
+			c.gridy = 2;
+			addSpinner("Iterações:", "iterations", new SpinnerNumberModel(100, 1, 1000, 10), c);
 			break;
 			
 		case SPLIT_AND_MERGE:
@@ -137,6 +154,10 @@ public class SegmentationOptionsPanel extends JPanel {
 			addSpinner("Limite Merge:", "mergeStandardDeviation", new SpinnerNumberModel(15, 1, 50, 1), c);
 			c.gridy = 2;
 			addSpinner("Área mínima:", "minSize", new SpinnerNumberModel(3, 1, 100, 1), c);
+			c.gridy = 3;
+			addSpinner("Ladrilho (0 = sem):", "tileSize", new SpinnerNumberModel(0, 0, 8192, 256), c);
+			c.gridy = 4;
+			addCheckBox("Ladrilhos se não couber na memória", "autoTile", true, c);
 			break;
 			
 		}